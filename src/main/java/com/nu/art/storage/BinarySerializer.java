@@ -0,0 +1,38 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the values of a {@link CustomPreference} to and from bytes, which are stored as is, without an intermediate string or any escaping.
+ */
+public abstract class BinarySerializer<ItemType> {
+
+	/**
+	 * @return the bytes representing the value, the array is kept by the storage and must not be modified afterwards.
+	 */
+	public abstract byte[] serialize(ItemType value);
+
+	/**
+	 * @param buffer A read only view of the stored bytes, positioned at the start of the value.
+	 */
+	public abstract ItemType deserialize(ByteBuffer buffer, Type type);
+}
@@ -0,0 +1,356 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.core.file.Charsets;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A compact length prefixed binary format that preserves the value types.
+ * <pre>
+ * header: magic(4) version(1) count(4)
+ * entry:  keyLength(4) key(utf8) type(1) valueLength(4) value
+ * </pre>
+ * The value length allows skipping values without decoding them.
+ */
+public final class BinaryStorageCodec
+	implements StorageCodec {
+
+	private static final byte[] Magic = {
+		'N',
+		'U',
+		'S',
+		'T'
+	};
+
+	private static final byte Version = 1;
+
+	static final byte Type_Null = 0;
+	static final byte Type_Boolean = 1;
+	static final byte Type_Int = 2;
+	static final byte Type_Long = 3;
+	static final byte Type_Float = 4;
+	static final byte Type_Double = 5;
+	static final byte Type_String = 6;
+	static final byte Type_Blob = 7;
+	static final byte Type_Json = 8;
+	static final byte Type_JsonTree = 9;
+
+	static final int HeaderSize = Magic.length + 1 + 4;
+
+	/**
+	 * The smallest entry, an empty key with a null value.
+	 */
+	private static final int MinEntrySize = 4 + 1 + 4;
+
+	public static final BinaryStorageCodec Codec = new BinaryStorageCodec();
+
+	private final Gson gson = new Gson();
+
+	public BinaryStorageCodec() {}
+
+	@Override
+	public boolean canDecode(ByteBuffer buffer) {
+		if (buffer.remaining() < HeaderSize)
+			return false;
+
+		int position = buffer.position();
+		for (int i = 0; i < Magic.length; i++) {
+			if (buffer.get(position + i) != Magic[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public ByteBuffer encode(Map<String, Object> data) {
+		return encode(data, null);
+	}
+
+	/**
+	 * Encodes the given data, followed by the entries of the index that were never decoded, copied as is.
+	 */
+	final ByteBuffer encode(Map<String, Object> data, LazyStorageIndex index) {
+		int count = data.size() + (index == null ? 0 : index.size());
+		ByteBuffer buffer = ByteBuffer.allocate(HeaderSize + count * 32);
+		buffer.put(Magic).put(Version).putInt(count);
+		for (Entry<String, Object> entry : data.entrySet()) {
+			buffer = writeEntry(buffer, entry.getKey(), entry.getValue());
+		}
+
+		if (index != null)
+			buffer = index.writeRawEntries(buffer);
+
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void decode(ByteBuffer buffer, Map<String, Object> into)
+		throws IOException {
+		try {
+			int count = readHeader(buffer);
+			for (int i = 0; i < count; i++) {
+				String key = readString(buffer, readLength(buffer));
+				into.put(key, readValue(buffer));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary storage", e);
+		}
+	}
+
+	/**
+	 * Validates the header and positions the buffer on the first entry.
+	 *
+	 * @return The number of entries.
+	 */
+	final int readHeader(ByteBuffer buffer)
+		throws IOException {
+		if (!canDecode(buffer))
+			throw new IOException("Not a binary storage");
+
+		buffer.position(buffer.position() + Magic.length);
+		byte version = buffer.get();
+		if (version != Version)
+			throw new IOException("Unsupported binary storage version: " + version);
+
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() / MinEntrySize)
+			throw new IOException("Corrupt binary storage, invalid entry count: " + count);
+
+		return count;
+	}
+
+	/**
+	 * Reads a length and checks it against the rest of the buffer, so a corrupt or truncated storage is reported as such rather than failing an allocation.
+	 */
+	static int readLength(ByteBuffer buffer)
+		throws IOException {
+		if (buffer.remaining() < 4)
+			throw new IOException("Truncated binary storage");
+
+		int length = buffer.getInt();
+		if (length < 0 || length > buffer.remaining())
+			throw new IOException("Corrupt binary storage, invalid length: " + length + ", remaining: " + buffer.remaining());
+
+		return length;
+	}
+
+	/**
+	 * Positions the buffer after the value it is positioned on, without decoding it.
+	 */
+	static void skipValue(ByteBuffer buffer)
+		throws IOException {
+		if (!buffer.hasRemaining())
+			throw new IOException("Truncated binary storage");
+
+		buffer.get();
+		int length = readLength(buffer);
+		buffer.position(buffer.position() + length);
+	}
+
+	final ByteBuffer writeEntry(ByteBuffer buffer, String key, Object value) {
+		return writeValue(writeKey(buffer, key), value);
+	}
+
+	final ByteBuffer writeKey(ByteBuffer buffer, String key) {
+		byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+		buffer = ensureCapacity(buffer, 4 + keyBytes.length);
+		buffer.putInt(keyBytes.length).put(keyBytes);
+		return buffer;
+	}
+
+	final ByteBuffer writeValue(ByteBuffer buffer, Object value) {
+		byte type;
+		byte[] bytes = null;
+		int length;
+
+		if (value == null) {
+			type = Type_Null;
+			length = 0;
+		} else if (value instanceof Boolean) {
+			type = Type_Boolean;
+			length = 1;
+		} else if (value instanceof Integer) {
+			type = Type_Int;
+			length = 4;
+		} else if (value instanceof Long) {
+			type = Type_Long;
+			length = 8;
+		} else if (value instanceof Float) {
+			type = Type_Float;
+			length = 4;
+		} else if (value instanceof Double) {
+			type = Type_Double;
+			length = 8;
+		} else if (value instanceof String) {
+			type = Type_String;
+			bytes = ((String) value).getBytes(Charsets.UTF_8);
+			length = bytes.length;
+		} else if (value instanceof byte[]) {
+			type = Type_Blob;
+			bytes = (byte[]) value;
+			length = bytes.length;
+		} else if (value instanceof JsonElement) {
+			type = Type_JsonTree;
+			bytes = value.toString().getBytes(Charsets.UTF_8);
+			length = bytes.length;
+		} else {
+			type = Type_Json;
+			bytes = gson.toJson(value).getBytes(Charsets.UTF_8);
+			length = bytes.length;
+		}
+
+		buffer = ensureCapacity(buffer, 1 + 4 + length);
+		buffer.put(type).putInt(length);
+		switch (type) {
+			case Type_Null:
+				break;
+
+			case Type_Boolean:
+				buffer.put((byte) ((Boolean) value ? 1 : 0));
+				break;
+
+			case Type_Int:
+				buffer.putInt((Integer) value);
+				break;
+
+			case Type_Long:
+				buffer.putLong((Long) value);
+				break;
+
+			case Type_Float:
+				buffer.putFloat((Float) value);
+				break;
+
+			case Type_Double:
+				buffer.putDouble((Double) value);
+				break;
+
+			default:
+				buffer.put(bytes);
+		}
+
+		return buffer;
+	}
+
+	final Object readValue(ByteBuffer buffer)
+		throws IOException {
+		if (!buffer.hasRemaining())
+			throw new IOException("Truncated binary storage");
+
+		byte type = buffer.get();
+		int length = readLength(buffer);
+		switch (type) {
+			case Type_Null:
+				return null;
+
+			case Type_Boolean:
+				assertLength(type, length, 1);
+				return buffer.get() != 0;
+
+			case Type_Int:
+				assertLength(type, length, 4);
+				return buffer.getInt();
+
+			case Type_Long:
+				assertLength(type, length, 8);
+				return buffer.getLong();
+
+			case Type_Float:
+				assertLength(type, length, 4);
+				return buffer.getFloat();
+
+			case Type_Double:
+				assertLength(type, length, 8);
+				return buffer.getDouble();
+
+			case Type_String:
+				return readString(buffer, length);
+
+			case Type_Blob:
+				byte[] blob = new byte[length];
+				buffer.get(blob);
+				return blob;
+
+			case Type_Json:
+				return readJson(buffer, length, Object.class);
+
+			case Type_JsonTree:
+				return readJson(buffer, length, JsonElement.class);
+
+			default:
+				throw new IOException("Unknown value type: " + type);
+		}
+	}
+
+	private static void assertLength(byte type, int length, int expected)
+		throws IOException {
+		if (length != expected)
+			throw new IOException("Corrupt binary storage, invalid length: " + length + " for value type: " + type);
+	}
+
+	private Object readJson(ByteBuffer buffer, int length, Class<?> type)
+		throws IOException {
+		try {
+			return gson.fromJson(readString(buffer, length), type);
+		} catch (JsonParseException e) {
+			throw new IOException("Corrupt binary storage, invalid json value", e);
+		}
+	}
+
+	/**
+	 * @param length A length that was checked against the rest of the buffer.
+	 */
+	private static String readString(ByteBuffer buffer, int length) {
+		if (buffer.hasArray()) {
+			String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			return value;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	static ByteBuffer ensureCapacity(ByteBuffer buffer, int required) {
+		if (buffer.remaining() >= required)
+			return buffer;
+
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position() + required);
+		if (capacity < 0)
+			throw new BadImplementationException("Storage too large to encode");
+
+		ByteBuffer newBuffer = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		newBuffer.put(buffer);
+		return newBuffer;
+	}
+}
@@ -29,6 +29,48 @@ public final class BooleanPreference
 		super(key, defaultValue);
 	}
 
+	/**
+	 * Same as {@link #get()}, without boxing the value.
+	 */
+	public boolean getBoolean() {
+		StorageImpl preferences = getPreferences();
+		if (isExpired(preferences))
+			return defaultValue;
+
+		return preferences.get(key, (boolean) defaultValue);
+	}
+
+	/**
+	 * Same as {@link #set(Object)}, without boxing the value, and logging the value only while debugging.
+	 */
+	public void setBoolean(boolean value) {
+		setBoolean(value, isDebugEnabled());
+	}
+
+	/**
+	 * Same as {@link #set(Object, boolean)}, without boxing the value.
+	 */
+	public void setBoolean(final boolean value, boolean printToLog) {
+		if (getBoolean() == value)
+			return;
+
+		if (printToLog)
+			logInfo("+----+ SET: " + key + ": " + value);
+
+		final StorageImpl preferences = getPreferences();
+		if (expires == -1) {
+			preferences.putBoolean(key, value);
+			return;
+		}
+
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.putBoolean(key, value);
+			}
+		});
+	}
+
 	@Override
 	protected Boolean _get(StorageImpl preferences, String key, Boolean defaultValue) {
 		return preferences.get(key, defaultValue);
@@ -0,0 +1,78 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nu.art.storage;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how well the in memory cache of the storage groups performs under the memory budget.<br>
+ * A hit is an access to a group that is resident in memory, a miss is one that had to load an evicted group from disk.<br>
+ * Accesses are only counted while a memory budget or an idle group timeout is set.
+ */
+public final class CacheMetrics {
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder evictedBytes = new LongAdder();
+
+	CacheMetrics() {}
+
+	final void onHit() {
+		hits.increment();
+	}
+
+	final void onMiss() {
+		misses.increment();
+	}
+
+	final void onEviction(long bytes) {
+		evictions.increment();
+		evictedBytes.add(bytes);
+	}
+
+	public final long getHitCount() {
+		return hits.sum();
+	}
+
+	public final long getMissCount() {
+		return misses.sum();
+	}
+
+	public final long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The total estimated size of the groups evicted so far.
+	 */
+	public final long getEvictedBytes() {
+		return evictedBytes.sum();
+	}
+
+	public final float getHitRatio() {
+		long hits = this.hits.sum();
+		long total = hits + misses.sum();
+		return total == 0 ? 1 : (float) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheMetrics{hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + ", evictedBytes=" + getEvictedBytes() + "}";
+	}
+}
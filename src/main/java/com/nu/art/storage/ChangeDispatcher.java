@@ -0,0 +1,192 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nu.art.storage;
+
+import com.nu.art.storage.PreferencesModule.StorageChangeListener;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the changes of the storage groups to their subscribers on a dedicated thread.<br>
+ * Changes are collected for a dispatch window before they are delivered, so a burst of writes to a key produces a single notification.
+ */
+abstract class ChangeDispatcher {
+
+	private static final class Subscriptions {
+
+		private final CopyOnWriteArrayList<StorageChangeListener> groupListeners = new CopyOnWriteArrayList<>();
+		private final ConcurrentHashMap<String, CopyOnWriteArrayList<StorageChangeListener>> keyListeners = new ConcurrentHashMap<>();
+	}
+
+	private final ConcurrentHashMap<String, Subscriptions> subscriptions = new ConcurrentHashMap<>();
+	private final HashMap<String, LinkedHashSet<String>> pending = new HashMap<>();
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private ScheduledExecutorService executor;
+	private boolean scheduled;
+	private long window = 50;
+
+	/**
+	 * @param window The time in ms changes are collected for before they are delivered.
+	 */
+	final synchronized void setWindow(long window) {
+		this.window = window;
+	}
+
+	/**
+	 * @return whether the group has any subscribers, changes to groups that don't are not collected at all.
+	 */
+	final boolean isObserved(String group) {
+		return subscriptions.containsKey(group);
+	}
+
+	/**
+	 * @param key The key to subscribe to, or null for all the keys of the group.
+	 */
+	final synchronized void subscribe(String group, String key, StorageChangeListener listener) {
+		Subscriptions subscriptions = this.subscriptions.get(group);
+		if (subscriptions == null)
+			this.subscriptions.put(group, subscriptions = new Subscriptions());
+
+		if (key == null) {
+			subscriptions.groupListeners.addIfAbsent(listener);
+			return;
+		}
+
+		CopyOnWriteArrayList<StorageChangeListener> listeners = subscriptions.keyListeners.get(key);
+		if (listeners == null)
+			subscriptions.keyListeners.put(key, listeners = new CopyOnWriteArrayList<>());
+
+		listeners.addIfAbsent(listener);
+	}
+
+	final synchronized void unsubscribe(String group, String key, StorageChangeListener listener) {
+		Subscriptions subscriptions = this.subscriptions.get(group);
+		if (subscriptions == null)
+			return;
+
+		if (key == null)
+			subscriptions.groupListeners.remove(listener);
+		else {
+			CopyOnWriteArrayList<StorageChangeListener> listeners = subscriptions.keyListeners.get(key);
+			if (listeners != null && listeners.remove(listener) && listeners.isEmpty())
+				subscriptions.keyListeners.remove(key);
+		}
+
+		if (subscriptions.groupListeners.isEmpty() && subscriptions.keyListeners.isEmpty())
+			this.subscriptions.remove(group);
+	}
+
+	final void onChanged(String group, Collection<String> keys) {
+		if (keys.isEmpty() || !isObserved(group))
+			return;
+
+		synchronized (this) {
+			LinkedHashSet<String> changed = pending.get(group);
+			if (changed == null)
+				pending.put(group, changed = new LinkedHashSet<>());
+
+			changed.addAll(keys);
+			if (scheduled)
+				return;
+
+			scheduled = true;
+			getExecutor().schedule(flush, window, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		HashMap<String, LinkedHashSet<String>> changes;
+		synchronized (this) {
+			changes = new HashMap<>(pending);
+			pending.clear();
+			scheduled = false;
+		}
+
+		for (Entry<String, LinkedHashSet<String>> entry : changes.entrySet()) {
+			String group = entry.getKey();
+			Subscriptions subscriptions = this.subscriptions.get(group);
+			if (subscriptions == null)
+				continue;
+
+			Set<String> keys = Collections.unmodifiableSet(entry.getValue());
+			for (StorageChangeListener listener : subscriptions.groupListeners) {
+				notify(listener, group, keys);
+			}
+
+			for (String key : keys) {
+				CopyOnWriteArrayList<StorageChangeListener> listeners = subscriptions.keyListeners.get(key);
+				if (listeners == null)
+					continue;
+
+				Set<String> changedKey = Collections.singleton(key);
+				for (StorageChangeListener listener : listeners) {
+					notify(listener, group, changedKey);
+				}
+			}
+		}
+	}
+
+	private void notify(StorageChangeListener listener, String group, Set<String> keys) {
+		try {
+			listener.onStorageChanged(group, keys);
+		} catch (Throwable t) {
+			onListenerError(listener, t);
+		}
+	}
+
+	protected abstract void onListenerError(StorageChangeListener listener, Throwable t);
+
+	private ScheduledExecutorService getExecutor() {
+		if (executor == null)
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "storage-change-dispatcher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		return executor;
+	}
+
+	/**
+	 * Stops the dispatcher thread once the changes that were already collected are delivered.
+	 */
+	final synchronized void shutdown() {
+		if (executor != null)
+			executor.shutdown();
+	}
+}
@@ -18,14 +18,30 @@
 
 package com.nu.art.storage;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
 import com.nu.art.core.interfaces.Serializer;
 import com.nu.art.storage.PreferencesModule.StorageImpl;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 
-import static com.nu.art.storage.PreferencesModule.EXPIRES_POSTFIX;
-import static com.nu.art.storage.PreferencesModule.JsonSerializer._Serializer;
+import static com.nu.art.storage.PreferencesModule.JsonSerializer.gson;
 
+/**
+ * A preference holding an object, which is kept in the storage in one of three forms:<br>
+ * - By default as json, which a group using the binary codec embeds as a tree, so it is encoded once with the rest of the group.
+ * Other groups keep the json string, since the json codec reads the numbers of a tree back as doubles.<br>
+ * - With a {@link BinarySerializer} as bytes, which the binary codec stores as a blob, and other groups as a Base64 string.<br>
+ * - With a {@link Serializer} as the string it produces.<br>
+ * Values stored in one form are still read after switching to another.
+ */
 @SuppressWarnings("UnusedReturnValue")
 public final class CustomPreference<ItemType>
 	extends PreferenceKey<CustomPreference<ItemType>, ItemType> {
@@ -33,11 +49,24 @@ public final class CustomPreference<ItemType>
 	private ItemType cache;
 	private Type itemType;
 	private Serializer<Object, String> serializer;
+	private BinarySerializer<ItemType> binarySerializer;
+	private boolean immutable;
+
+	/**
+	 * The default value in its stored form, encoded once and decoded into a new copy whenever the default is read.
+	 */
+	private Object storedDefault;
+
+	/**
+	 * In immutable mode, the last decoded value with the stored value it was decoded from, reused for as long as that is still the stored value.
+	 */
+	private Decoded<ItemType> decoded;
 
 	public CustomPreference() {}
 
 	public CustomPreference(String key, Type itemType, ItemType defaultValue) {
-		this(key, itemType, _Serializer, defaultValue);
+		super(key, defaultValue);
+		this.itemType = itemType;
 	}
 
 	public CustomPreference(String key, Type itemType, Serializer<Object, String> serializer, ItemType defaultValue) {
@@ -46,32 +75,178 @@ public final class CustomPreference<ItemType>
 		this.serializer = serializer;
 	}
 
-	public CustomPreference<ItemType> setItemType(Class<ItemType> itemType, Serializer<Object, String> serializer) {
+	public CustomPreference(String key, Type itemType, BinarySerializer<ItemType> binarySerializer, ItemType defaultValue) {
+		super(key, defaultValue);
 		this.itemType = itemType;
-		this.serializer = serializer;
+		this.binarySerializer = binarySerializer;
+	}
+
+	@Override
+	public CustomPreference<ItemType> setKey(String key, ItemType defaultValue) {
+		this.storedDefault = null;
+		return super.setKey(key, defaultValue);
+	}
+
+	@Override
+	public CustomPreference<ItemType> setDefaultValue(ItemType defaultValue) {
+		this.storedDefault = null;
+		return super.setDefaultValue(defaultValue);
+	}
+
+	public CustomPreference<ItemType> setItemType(Class<ItemType> itemType) {
+		this.itemType = itemType;
+		this.storedDefault = null;
+		this.decoded = null;
 		return this;
 	}
 
+	public CustomPreference<ItemType> setItemType(Class<ItemType> itemType, Serializer<Object, String> serializer) {
+		this.itemType = itemType;
+		return setSerializer(serializer);
+	}
+
 	public CustomPreference<ItemType> setSerializer(Serializer<Object, String> serializer) {
 		this.serializer = serializer;
+		this.binarySerializer = null;
+		this.storedDefault = null;
+		this.decoded = null;
+		return this;
+	}
+
+	public CustomPreference<ItemType> setSerializer(BinarySerializer<ItemType> binarySerializer) {
+		this.binarySerializer = binarySerializer;
+		this.serializer = null;
+		this.storedDefault = null;
+		this.decoded = null;
+		return this;
+	}
+
+	/**
+	 * @param immutable Whether the values are never modified in place, in which case the default value is returned as is instead of as a copy,
+	 *                  and a stored value is decoded once and shared, rather than decoded again whenever the cache is cleared.
+	 */
+	public CustomPreference<ItemType> setImmutable(boolean immutable) {
+		this.immutable = immutable;
+		this.decoded = null;
 		return this;
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
 	protected ItemType _get(StorageImpl preferences, String key, ItemType defaultValue) {
 		if (cache != null)
 			return cache;
 
-		String value = preferences.get(key, null);
+		Object value = preferences.get(key);
 		if (value != null)
 			try {
-				return setCache((ItemType) serializer.deserialize(value, itemType));
+				if (!immutable)
+					return setCache(decode(value));
+
+				Decoded<ItemType> decoded = this.decoded;
+				if (decoded == null || decoded.stored != value)
+					this.decoded = decoded = new Decoded<>(value, decode(value));
+
+				return setCache(decoded.value);
 			} catch (Exception e) {
 				logError("Error while deserializing item type: " + itemType, e);
 			}
 
-		return setCache((ItemType) serializer.deserialize(serializer.serialize(defaultValue), itemType));
+		if (defaultValue == null || immutable)
+			return setCache(defaultValue);
+
+		// the caller may modify the value it gets, so it gets a copy of the default rather than the default itself
+		Object storedDefault = this.storedDefault;
+		if (storedDefault == null)
+			this.storedDefault = storedDefault = encode(defaultValue, true);
+
+		return setCache(decode(storedDefault));
+	}
+
+	private static final class Decoded<ItemType> {
+
+		private final Object stored;
+		private final ItemType value;
+
+		private Decoded(Object stored, ItemType value) {
+			this.stored = stored;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @param binaryGroup Whether the group keeps json trees and blobs as they are, rather than as strings.
+	 * @return the value in the form it is kept in the storage.
+	 */
+	private Object encode(ItemType value, boolean binaryGroup) {
+		if (value == null)
+			return null;
+
+		if (binarySerializer != null) {
+			byte[] bytes = binarySerializer.serialize(value);
+			return binaryGroup ? bytes : Base64.getEncoder().encodeToString(bytes);
+		}
+
+		if (serializer != null)
+			return serializer.serialize(value);
+
+		return binaryGroup ? gson.toJsonTree(value, itemType) : gson.toJson(value, itemType);
+	}
+
+	@SuppressWarnings("unchecked")
+	private ItemType decode(Object stored) {
+		if (binarySerializer != null)
+			return binarySerializer.deserialize(toBuffer(stored), itemType);
+
+		if (serializer != null)
+			return (ItemType) serializer.deserialize(stored instanceof String ? (String) stored : gson.toJson(stored), itemType);
+
+		if (stored instanceof String)
+			return gson.fromJson((String) stored, itemType);
+
+		// the json codec reads embedded trees back as maps and lists
+		return gson.fromJson(stored instanceof JsonElement ? (JsonElement) stored : gson.toJsonTree(stored), itemType);
+	}
+
+	/**
+	 * The json codec has no blob type, the bytes are kept as a Base64 string, or were written as a list of numbers by earlier versions.
+	 */
+	private static ByteBuffer toBuffer(Object stored) {
+		if (stored instanceof byte[])
+			return ByteBuffer.wrap((byte[]) stored).asReadOnlyBuffer();
+
+		if (stored instanceof String)
+			try {
+				return ByteBuffer.wrap(Base64.getDecoder().decode((String) stored)).asReadOnlyBuffer();
+			} catch (IllegalArgumentException e) {
+				throw new BadImplementationException("Expected a Base64 value", e);
+			}
+
+		if (!(stored instanceof List))
+			throw new BadImplementationException("Expected a binary value, but was: " + stored.getClass());
+
+		List<?> numbers = (List<?>) stored;
+		byte[] bytes = new byte[numbers.size()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = ((Number) numbers.get(i)).byteValue();
+		}
+
+		return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a stream over the stored form of the value without decoding it, or null if no value is stored.
+	 */
+	public InputStream openStream()
+		throws IOException {
+		return getPreferences().openStream(key);
+	}
+
+	/**
+	 * @return a read only buffer holding the stored form of the value without decoding it, or null if no value is stored.
+	 */
+	public ByteBuffer getBuffer()
+		throws IOException {
+		return getPreferences().getBuffer(key);
 	}
 
 	private ItemType setCache(ItemType cache) {
@@ -92,26 +267,88 @@ public final class CustomPreference<ItemType>
 		set(value, false);
 	}
 
+	/**
+	 * @param value The value in its serialized form, json unless a {@link Serializer} is set, or the bytes of a {@link BinarySerializer} as Base64.<br>
+	 *              A value that is not valid in that form is stored as is, and read as the default value.
+	 */
 	public void set(final String value, boolean printToLog) {
-		final StorageImpl preferences = getPreferences();
-		String savedValue = preferences.get(key, null);
+		StorageImpl preferences = getPreferences();
+		Object stored = value;
+		if (value != null && preferences.keepsJsonTrees())
+			try {
+				if (binarySerializer != null)
+					stored = Base64.getDecoder().decode(value);
+				else if (serializer == null)
+					stored = gson.fromJson(value, JsonElement.class);
+			} catch (IllegalArgumentException | JsonParseException e) {
+				logError("Not a valid serialized value for: " + key, e);
+			}
+
+		if (setStored(preferences, stored, printToLog ? value : null))
+			setCache(null);
+	}
+
+	/**
+	 * Objects are compared by their stored form, since their type may not implement equals, and may have been mutated in place since they were read.
+	 */
+	@Override
+	protected void set(StorageImpl preferences, ItemType value, boolean printToLog) {
+		if (setStored(preferences, encode(value, preferences.keepsJsonTrees()), printToLog ? value : null))
+			cache = value;
+	}
 
-		if (savedValue != null && savedValue.equals(value))
-			return;
+	/**
+	 * Writing the same content as the stored one is skipped, so it costs no I/O.
+	 *
+	 * @return true if the value was written.
+	 */
+	private boolean setStored(final StorageImpl preferences, final Object stored, Object toLog) {
+		Object savedValue = preferences.get(key);
+		if (!isExpired(preferences) && isSameContent(stored, savedValue))
+			return false;
 
-		if (printToLog)
-			logInfo("+----+ SET: " + key + ": " + value);
+		if (toLog != null)
+			logInfo("+----+ SET: " + key + ": " + toLog);
 
-		setCache(null);
-		preferences.put(key, value);
-		if (expires != -1)
-			preferences.put(key + EXPIRES_POSTFIX, System.currentTimeMillis());
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.put(key, stored);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * The saved value may have been decoded by the codec since it was written, so it is compared in the stored form of the new value.
+	 */
+	private static boolean isSameContent(Object stored, Object savedValue) {
+		if (stored == null || savedValue == null)
+			return stored == savedValue;
+
+		if (stored instanceof byte[] && savedValue instanceof byte[])
+			return Arrays.equals((byte[]) stored, (byte[]) savedValue);
+
+		if (stored instanceof byte[] && (savedValue instanceof List || savedValue instanceof String))
+			try {
+				return ByteBuffer.wrap((byte[]) stored).equals(toBuffer(savedValue));
+			} catch (BadImplementationException e) {
+				return false;
+			}
+
+		if (stored instanceof JsonElement && !(savedValue instanceof JsonElement))
+			try {
+				return stored.equals(savedValue instanceof String ? gson.fromJson((String) savedValue, JsonElement.class) : gson.toJsonTree(savedValue));
+			} catch (JsonParseException e) {
+				return false;
+			}
+
+		return stored.equals(savedValue);
 	}
 
 	@Override
 	protected void _set(StorageImpl preferences, String key, ItemType value) {
-		String valueAsString = value == null ? null : serializer.serialize(value);
-		preferences.put(key, valueAsString);
+		preferences.put(key, encode(value, preferences.keepsJsonTrees()));
 		cache = value;
 	}
 
@@ -29,6 +29,48 @@ public final class DoublePreference
 		super(key, defaultValue);
 	}
 
+	/**
+	 * Same as {@link #get()}, without boxing the value.
+	 */
+	public double getDouble() {
+		StorageImpl preferences = getPreferences();
+		if (isExpired(preferences))
+			return defaultValue;
+
+		return preferences.get(key, (double) defaultValue);
+	}
+
+	/**
+	 * Same as {@link #set(Object)}, without boxing the value, and logging the value only while debugging.
+	 */
+	public void setDouble(double value) {
+		setDouble(value, isDebugEnabled());
+	}
+
+	/**
+	 * Same as {@link #set(Object, boolean)}, without boxing the value.
+	 */
+	public void setDouble(final double value, boolean printToLog) {
+		if (Double.compare(getDouble(), value) == 0)
+			return;
+
+		if (printToLog)
+			logInfo("+----+ SET: " + key + ": " + value);
+
+		final StorageImpl preferences = getPreferences();
+		if (expires == -1) {
+			preferences.putDouble(key, value);
+			return;
+		}
+
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.putDouble(key, value);
+			}
+		});
+	}
+
 	@Override
 	protected Double _get(StorageImpl preferences, String key, Double defaultValue) {
 		return preferences.get(key, defaultValue);
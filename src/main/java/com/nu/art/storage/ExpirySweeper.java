@@ -0,0 +1,177 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evicts expired storage entries in the background, in order of their expiration time.<br>
+ * A key is queued at most once, at the earliest time it may expire at, so rewriting it does not grow the queue.
+ */
+final class ExpirySweeper
+	implements Runnable {
+
+	interface ExpiringStorage {
+
+		/**
+		 * Called once the scheduled time of the key passed, the storage decides whether it actually expired or needs to be rescheduled.
+		 */
+		void sweep(String key);
+	}
+
+	/**
+	 * The expiration metadata of a storage entry, kept next to its value.
+	 */
+	static final class ExpiringValue {
+
+		final Object value;
+		final long expiresAt;
+
+		ExpiringValue(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		final boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+	}
+
+	private static final class Expiration
+		implements Delayed {
+
+		private final ExpiringStorage storage;
+		private final String key;
+		private final long scheduledAt;
+
+		Expiration(ExpiringStorage storage, String key, long scheduledAt) {
+			this.storage = storage;
+			this.key = key;
+			this.scheduledAt = scheduledAt;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(scheduledAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			long otherScheduledAt = ((Expiration) other).scheduledAt;
+			return scheduledAt < otherScheduledAt ? -1 : scheduledAt == otherScheduledAt ? 0 : 1;
+		}
+	}
+
+	private final DelayQueue<Expiration> queue = new DelayQueue<>();
+
+	/**
+	 * The queued expiration of every key, guarded by its own monitor.
+	 */
+	private final HashMap<ExpiringStorage, HashMap<String, Expiration>> pending = new HashMap<>();
+	private Thread thread;
+
+	final synchronized void start() {
+		if (thread != null)
+			return;
+
+		thread = new Thread(this, "storage-expiry-sweeper");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	final synchronized void stop() {
+		if (thread != null)
+			thread.interrupt();
+
+		thread = null;
+	}
+
+	final void schedule(ExpiringStorage storage, String key, long scheduledAt) {
+		synchronized (pending) {
+			HashMap<String, Expiration> keys = pending.get(storage);
+			if (keys == null)
+				pending.put(storage, keys = new HashMap<>());
+
+			Expiration previous = keys.get(key);
+			if (previous != null) {
+				// an earlier sweep reschedules itself to the later time, if the key did not expire by then
+				if (previous.scheduledAt <= scheduledAt)
+					return;
+
+				queue.remove(previous);
+			}
+
+			Expiration expiration = new Expiration(storage, key, scheduledAt);
+			keys.put(key, expiration);
+			queue.add(expiration);
+		}
+	}
+
+	/**
+	 * Drops the queued expirations of the storage, it is not swept anymore.
+	 */
+	final void cancel(ExpiringStorage storage) {
+		synchronized (pending) {
+			HashMap<String, Expiration> keys = pending.remove(storage);
+			if (keys != null)
+				queue.removeAll(new HashSet<>(keys.values()));
+		}
+	}
+
+	/**
+	 * @return the number of queued expirations.
+	 */
+	final int getPendingCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return false if the expiration was replaced or cancelled after it was queued.
+	 */
+	private boolean dequeue(Expiration expiration) {
+		synchronized (pending) {
+			HashMap<String, Expiration> keys = pending.get(expiration.storage);
+			if (keys == null || keys.get(expiration.key) != expiration)
+				return false;
+
+			keys.remove(expiration.key);
+			if (keys.isEmpty())
+				pending.remove(expiration.storage);
+
+			return true;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Expiration expiration = queue.take();
+				if (dequeue(expiration))
+					expiration.storage.sweep(expiration.key);
+			}
+		} catch (InterruptedException ignore) {
+			// stopped
+		}
+	}
+}
@@ -29,6 +29,48 @@ public final class FloatPreference
 		super(key, defaultValue);
 	}
 
+	/**
+	 * Same as {@link #get()}, without boxing the value.
+	 */
+	public float getFloat() {
+		StorageImpl preferences = getPreferences();
+		if (isExpired(preferences))
+			return defaultValue;
+
+		return preferences.get(key, (float) defaultValue);
+	}
+
+	/**
+	 * Same as {@link #set(Object)}, without boxing the value, and logging the value only while debugging.
+	 */
+	public void setFloat(float value) {
+		setFloat(value, isDebugEnabled());
+	}
+
+	/**
+	 * Same as {@link #set(Object, boolean)}, without boxing the value.
+	 */
+	public void setFloat(final float value, boolean printToLog) {
+		if (Float.compare(getFloat(), value) == 0)
+			return;
+
+		if (printToLog)
+			logInfo("+----+ SET: " + key + ": " + value);
+
+		final StorageImpl preferences = getPreferences();
+		if (expires == -1) {
+			preferences.putFloat(key, value);
+			return;
+		}
+
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.putFloat(key, value);
+			}
+		});
+	}
+
 	@Override
 	protected Float _get(StorageImpl preferences, String key, Float defaultValue) {
 		return preferences.get(key, defaultValue);
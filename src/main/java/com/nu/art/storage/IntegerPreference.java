@@ -29,6 +29,48 @@ public final class IntegerPreference
 		super(key, defaultValue);
 	}
 
+	/**
+	 * Same as {@link #get()}, without boxing the value.
+	 */
+	public int getInt() {
+		StorageImpl preferences = getPreferences();
+		if (isExpired(preferences))
+			return defaultValue;
+
+		return preferences.get(key, (int) defaultValue);
+	}
+
+	/**
+	 * Same as {@link #set(Object)}, without boxing the value, and logging the value only while debugging.
+	 */
+	public void setInt(int value) {
+		setInt(value, isDebugEnabled());
+	}
+
+	/**
+	 * Same as {@link #set(Object, boolean)}, without boxing the value.
+	 */
+	public void setInt(final int value, boolean printToLog) {
+		if (getInt() == value)
+			return;
+
+		if (printToLog)
+			logInfo("+----+ SET: " + key + ": " + value);
+
+		final StorageImpl preferences = getPreferences();
+		if (expires == -1) {
+			preferences.putInt(key, value);
+			return;
+		}
+
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.putInt(key, value);
+			}
+		});
+	}
+
 	@Override
 	protected Integer _get(StorageImpl preferences, String key, Integer defaultValue) {
 		return preferences.get(key, defaultValue);
@@ -0,0 +1,78 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.nu.art.core.file.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The legacy storage format, the whole group as a single json object.<br>
+ * Numbers are read back as {@link Double}, so longs above 2^53 lose precision.
+ */
+public final class JsonStorageCodec
+	implements StorageCodec {
+
+	private final Gson gson;
+
+	public JsonStorageCodec(Gson gson) {
+		this.gson = gson;
+	}
+
+	@Override
+	public boolean canDecode(ByteBuffer buffer) {
+		for (int i = buffer.position(); i < buffer.limit(); i++) {
+			byte b = buffer.get(i);
+			if (Character.isWhitespace(b))
+				continue;
+
+			return b == '{' || b == 'n';
+		}
+
+		return true;
+	}
+
+	@Override
+	public ByteBuffer encode(Map<String, Object> data) {
+		return ByteBuffer.wrap(gson.toJson(data).getBytes(Charsets.UTF_8));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void decode(ByteBuffer buffer, Map<String, Object> into)
+		throws IOException {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+
+		HashMap map;
+		try {
+			map = gson.fromJson(new String(bytes, Charsets.UTF_8), HashMap.class);
+		} catch (JsonParseException e) {
+			throw new IOException("Error parsing json storage", e);
+		}
+
+		if (map != null)
+			into.putAll(map);
+	}
+}
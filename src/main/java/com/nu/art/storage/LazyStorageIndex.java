@@ -0,0 +1,148 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.nu.art.core.file.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A key to offset index over a read only mapping of a binary storage snapshot.<br>
+ * Values stay on disk until their first read, at which point they are decoded and dropped from the index.<br>
+ * Lookups are safe without locking, mutations are expected to be serialized by the owning storage.
+ */
+final class LazyStorageIndex {
+
+	private final ByteBuffer mapped;
+	private final ConcurrentHashMap<String, Integer> offsets;
+
+	private LazyStorageIndex(ByteBuffer mapped, ConcurrentHashMap<String, Integer> offsets) {
+		this.mapped = mapped;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * Maps the file and indexes its entries without decoding any of the values.
+	 */
+	static LazyStorageIndex open(File file, BinaryStorageCodec codec)
+		throws IOException {
+		ByteBuffer mapped;
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+
+		ByteBuffer buffer = mapped.duplicate();
+		try {
+			int count = codec.readHeader(buffer);
+			ConcurrentHashMap<String, Integer> offsets = new ConcurrentHashMap<>(count * 4 / 3 + 1);
+			for (int i = 0; i < count; i++) {
+				byte[] key = new byte[BinaryStorageCodec.readLength(buffer)];
+				buffer.get(key);
+
+				int offset = buffer.position();
+				BinaryStorageCodec.skipValue(buffer);
+				offsets.put(new String(key, Charsets.UTF_8), offset);
+			}
+
+			return new LazyStorageIndex(mapped, offsets);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated binary storage: " + file.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * @return an index over the same mapping, unaffected by later changes to this one.
+	 */
+	final LazyStorageIndex copy() {
+		return new LazyStorageIndex(mapped, new ConcurrentHashMap<>(offsets));
+	}
+
+	final int size() {
+		return offsets.size();
+	}
+
+	final boolean contains(String key) {
+		return offsets.containsKey(key);
+	}
+
+	final Set<String> keys() {
+		return offsets.keySet();
+	}
+
+	final void remove(String key) {
+		offsets.remove(key);
+	}
+
+	final void clear() {
+		offsets.clear();
+	}
+
+	/**
+	 * Decodes the value of the given key and drops it from the index.
+	 *
+	 * @return true if the key was in the index.
+	 */
+	final boolean materialize(String key, Map<String, Object> into)
+		throws IOException {
+		Integer offset = offsets.remove(key);
+		if (offset == null)
+			return false;
+
+		ByteBuffer buffer = mapped.duplicate();
+		buffer.position(offset);
+		Object value = BinaryStorageCodec.Codec.readValue(buffer);
+		if (value != null)
+			into.put(key, value);
+
+		return true;
+	}
+
+	/**
+	 * Copies the still encoded entries, as is, into the given buffer.<br>
+	 * The lengths of the entries were checked against the mapping when it was indexed.
+	 */
+	final ByteBuffer writeRawEntries(ByteBuffer buffer) {
+		for (Entry<String, Integer> entry : offsets.entrySet()) {
+			int offset = entry.getValue();
+			ByteBuffer value = mapped.duplicate();
+			value.position(offset);
+			value.limit(offset + 1 + 4 + mapped.getInt(offset + 1));
+
+			buffer = BinaryStorageCodec.Codec.writeKey(buffer, entry.getKey());
+			buffer = BinaryStorageCodec.ensureCapacity(buffer, value.remaining());
+			buffer.put(value);
+		}
+
+		return buffer;
+	}
+}
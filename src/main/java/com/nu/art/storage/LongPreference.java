@@ -29,6 +29,48 @@ public final class LongPreference
 		super(key, defaultValue);
 	}
 
+	/**
+	 * Same as {@link #get()}, without boxing the value.
+	 */
+	public long getLong() {
+		StorageImpl preferences = getPreferences();
+		if (isExpired(preferences))
+			return defaultValue;
+
+		return preferences.get(key, (long) defaultValue);
+	}
+
+	/**
+	 * Same as {@link #set(Object)}, without boxing the value, and logging the value only while debugging.
+	 */
+	public void setLong(long value) {
+		setLong(value, isDebugEnabled());
+	}
+
+	/**
+	 * Same as {@link #set(Object, boolean)}, without boxing the value.
+	 */
+	public void setLong(final long value, boolean printToLog) {
+		if (getLong() == value)
+			return;
+
+		if (printToLog)
+			logInfo("+----+ SET: " + key + ": " + value);
+
+		final StorageImpl preferences = getPreferences();
+		if (expires == -1) {
+			preferences.putLong(key, value);
+			return;
+		}
+
+		write(preferences, new Runnable() {
+			@Override
+			public void run() {
+				preferences.putLong(key, value);
+			}
+		});
+	}
+
 	@Override
 	protected Long _get(StorageImpl preferences, String key, Long defaultValue) {
 		return preferences.get(key, defaultValue);
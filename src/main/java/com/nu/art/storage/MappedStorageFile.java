@@ -0,0 +1,447 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.core.file.Charsets;
+import com.nu.art.core.tools.FileTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A storage group kept in a memory mapped file, with an on disk chained hash index.<br>
+ * Values are read straight from the mapped region without locking. A record is never modified once it is linked, a new value is appended as a new
+ * record which replaces the previous one in its chain, and the space of the replaced records is reclaimed by rebuilding the file.
+ * <pre>
+ * header:  magic(4) version(4) bucketCount(4) entryCount(4) writeOffset(8) garbageBytes(8)
+ * buckets: bucketCount * recordOffset(8)
+ * record:  next(8) hash(4) keyLength(4) key(utf8) capacity(4) value(type(1) length(4) payload)
+ * </pre>
+ * The whole file must fit a single mapping, i.e. less than 2GB.
+ */
+final class MappedStorageFile {
+
+	private static final byte[] Magic = {
+		'N',
+		'U',
+		'M',
+		'P'
+	};
+
+	private static final int Version = 1;
+
+	private static final int Offset_BucketCount = 8;
+	private static final int Offset_EntryCount = 12;
+	private static final int Offset_WriteOffset = 16;
+	private static final int Offset_GarbageBytes = 24;
+	private static final int HeaderSize = 32;
+
+	private static final int RecordHeaderSize = 8 + 4 + 4;
+	private static final int InitialBucketCount = 1024;
+	private static final float MaxLoadFactor = 0.75f;
+
+	private final File file;
+	private final BinaryStorageCodec codec = BinaryStorageCodec.Codec;
+
+	private RandomAccessFile randomAccessFile;
+	private FileChannel channel;
+
+	/**
+	 * The mapping the reads use without locking, replaced when the file grows or is rebuilt, and null once it is closed.<br>
+	 * A replaced mapping keeps mapping the content it was created over, so a read that started on it completes consistently.
+	 */
+	private volatile Mapping mapping;
+
+	/**
+	 * Written after a record and before the link that publishes it, so a read that follows the link sees the whole record.
+	 */
+	private volatile long publishedRecords;
+
+	MappedStorageFile(File file) {
+		this.file = file;
+	}
+
+	static boolean isMappedFile(ByteBuffer buffer) {
+		if (buffer.remaining() < HeaderSize)
+			return false;
+
+		for (int i = 0; i < Magic.length; i++) {
+			if (buffer.get(buffer.position() + i) != Magic[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	final boolean isOpen() {
+		return mapping != null;
+	}
+
+	final synchronized void open()
+		throws IOException {
+		boolean exists = file.exists() && file.length() >= HeaderSize;
+		File folder = file.getParentFile();
+		if (folder != null && !folder.exists())
+			FileTools.mkDir(folder);
+
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		channel = randomAccessFile.getChannel();
+		if (!exists) {
+			initialize(InitialBucketCount);
+			return;
+		}
+
+		MappedByteBuffer buffer = map(channel.size());
+		if (!isMappedFile(buffer))
+			throw new IOException("Not a mapped storage file: " + file.getAbsolutePath());
+
+		int version = buffer.getInt(4);
+		if (version != Version)
+			throw new IOException("Unsupported mapped storage version: " + version);
+
+		mapping = new Mapping(buffer, buffer.getInt(Offset_BucketCount));
+	}
+
+	/**
+	 * Must only be called on a file no reader maps yet, it truncates it.
+	 */
+	private void initialize(int bucketCount)
+		throws IOException {
+		long writeOffset = HeaderSize + bucketCount * 8L;
+		channel.truncate(0);
+		MappedByteBuffer buffer = map(Math.max(writeOffset * 2, 64 * 1024));
+
+		ByteBuffer view = buffer.duplicate();
+		view.put(Magic).putInt(Version).putInt(bucketCount).putInt(0).putLong(writeOffset).putLong(0);
+		for (int i = 0; i < bucketCount; i++) {
+			view.putLong(0);
+		}
+
+		mapping = new Mapping(buffer, bucketCount);
+	}
+
+	private MappedByteBuffer map(long size)
+		throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Mapped storage cannot exceed 2GB: " + file.getAbsolutePath());
+
+		return channel.map(MapMode.READ_WRITE, 0, size);
+	}
+
+	private Mapping current() {
+		Mapping mapping = this.mapping;
+		if (mapping == null)
+			throw new BadImplementationException("Mapped storage is closed: " + file.getAbsolutePath());
+
+		return mapping;
+	}
+
+	final int size() {
+		return current().size();
+	}
+
+	final Object get(String key)
+		throws IOException {
+		byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+		int hash = hash(keyBytes);
+		Mapping mapping = current();
+		try {
+			return mapping.get(hash, keyBytes);
+		} catch (IOException | RuntimeException e) {
+			// a record appended once the file grew lies past the end of the mapping the read started with
+			if (this.mapping == mapping)
+				throw e;
+		}
+
+		synchronized (this) {
+			return current().get(hash, keyBytes);
+		}
+	}
+
+	final ArrayList<String> keys() {
+		Mapping mapping = current();
+		try {
+			return mapping.keys();
+		} catch (RuntimeException e) {
+			if (this.mapping == mapping)
+				throw e;
+		}
+
+		synchronized (this) {
+			return current().keys();
+		}
+	}
+
+	final synchronized void put(String key, Object value)
+		throws IOException {
+		byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+		int hash = hash(keyBytes);
+
+		ByteBuffer encoded = codec.writeValue(ByteBuffer.allocate(32), value);
+		encoded.flip();
+
+		int replaced = current().findRecord(hash, keyBytes);
+		appendRecord(hash, keyBytes, encoded, replaced);
+
+		Mapping mapping = current();
+		if (mapping.size() > mapping.bucketCount * MaxLoadFactor)
+			rebuild(mapping.bucketCount * 2, true);
+		else if (mapping.buffer.getLong(Offset_GarbageBytes) > mapping.buffer.getLong(Offset_WriteOffset) / 2)
+			rebuild(mapping.bucketCount, true);
+	}
+
+	final synchronized void remove(String key) {
+		byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+		int hash = hash(keyBytes);
+		Mapping mapping = current();
+		int record = mapping.findRecord(hash, keyBytes);
+		if (record == 0)
+			return;
+
+		MappedByteBuffer buffer = mapping.buffer;
+		buffer.putLong(mapping.findLink(hash, record), buffer.getLong(record));
+		buffer.putInt(Offset_EntryCount, mapping.size() - 1);
+		buffer.putLong(Offset_GarbageBytes, buffer.getLong(Offset_GarbageBytes) + mapping.recordSize(record));
+	}
+
+	final synchronized void putAll(Map<String, Object> data)
+		throws IOException {
+		for (Entry<String, Object> entry : data.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Replaces the file with an empty one, rather than truncating a file that reads may still be mapping.
+	 */
+	final synchronized void clear()
+		throws IOException {
+		rebuild(InitialBucketCount, false);
+	}
+
+	final synchronized void force() {
+		// a closed file was forced as it was closed
+		Mapping mapping = this.mapping;
+		if (mapping != null)
+			mapping.buffer.force();
+	}
+
+	final synchronized void close()
+		throws IOException {
+		if (channel == null)
+			return;
+
+		closeChannel();
+		mapping = null;
+	}
+
+	/**
+	 * Closes the file, the mapping stays valid for the reads that use it.
+	 */
+	private void closeChannel()
+		throws IOException {
+		mapping.buffer.force();
+		randomAccessFile.close();
+		channel = null;
+	}
+
+	/**
+	 * Appends the record and links it in place of the replaced one, or at the head of its bucket.
+	 *
+	 * @param value    The value region of the record, written as is.
+	 * @param replaced The record of the same key, or 0 if there is none.
+	 */
+	private void appendRecord(int hash, byte[] keyBytes, ByteBuffer value, int replaced)
+		throws IOException {
+		int capacity = value.remaining();
+		int recordSize = RecordHeaderSize + keyBytes.length + 4 + capacity;
+		Mapping mapping = current();
+		long writeOffset = mapping.buffer.getLong(Offset_WriteOffset);
+		if (writeOffset + recordSize > mapping.buffer.capacity())
+			this.mapping = mapping = new Mapping(map(Math.max(mapping.buffer.capacity() * 2L, writeOffset + recordSize)), mapping.bucketCount);
+
+		MappedByteBuffer buffer = mapping.buffer;
+		int record = (int) writeOffset;
+		int link = replaced != 0 ? mapping.findLink(hash, replaced) : mapping.bucketOffset(hash);
+		long next = buffer.getLong(replaced != 0 ? replaced : link);
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(record);
+		view.putLong(next).putInt(hash).putInt(keyBytes.length).put(keyBytes).putInt(capacity).put(value);
+		buffer.putLong(Offset_WriteOffset, writeOffset + recordSize);
+
+		publishedRecords++;
+		buffer.putLong(link, record);
+		if (replaced != 0)
+			buffer.putLong(Offset_GarbageBytes, buffer.getLong(Offset_GarbageBytes) + mapping.recordSize(replaced));
+		else
+			buffer.putInt(Offset_EntryCount, mapping.size() + 1);
+	}
+
+	/**
+	 * Copies the live records, without decoding them, into a fresh file with the given number of buckets, which atomically replaces this one.
+	 */
+	private void rebuild(int newBucketCount, boolean copyRecords)
+		throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		FileTools.delete(tempFile);
+
+		MappedStorageFile rebuilt = new MappedStorageFile(tempFile);
+		rebuilt.open();
+		rebuilt.initialize(newBucketCount);
+
+		Mapping mapping = current();
+		for (int bucket = 0; copyRecords && bucket < mapping.bucketCount; bucket++) {
+			int record = (int) mapping.buffer.getLong(HeaderSize + bucket * 8);
+			while (record != 0) {
+				ByteBuffer view = mapping.buffer.duplicate();
+				view.position(mapping.valueOffset(record));
+
+				int capacity = view.getInt();
+				view.limit(view.position() + capacity);
+				rebuilt.appendRecord(mapping.buffer.getInt(record + 8), mapping.readKey(record), view, 0);
+				record = (int) mapping.buffer.getLong(record);
+			}
+		}
+
+		rebuilt.close();
+		// the reads keep using the previous mapping until the rebuilt file is opened
+		closeChannel();
+
+		// the previous file stays in place until the rebuilt one atomically replaces it
+		StorageFiles.replace(tempFile, file, true);
+		open();
+	}
+
+	private static int hash(byte[] keyBytes) {
+		return Arrays.hashCode(keyBytes);
+	}
+
+	/**
+	 * A mapping of the file, with the number of buckets of the file it maps.
+	 */
+	private static final class Mapping {
+
+		private final MappedByteBuffer buffer;
+		private final int bucketCount;
+
+		private Mapping(MappedByteBuffer buffer, int bucketCount) {
+			this.buffer = buffer;
+			this.bucketCount = bucketCount;
+		}
+
+		private int size() {
+			return buffer.getInt(Offset_EntryCount);
+		}
+
+		private Object get(int hash, byte[] keyBytes)
+			throws IOException {
+			int record = findRecord(hash, keyBytes);
+			if (record == 0)
+				return null;
+
+			ByteBuffer view = buffer.duplicate();
+			view.position(valueOffset(record) + 4);
+			return BinaryStorageCodec.Codec.readValue(view);
+		}
+
+		private ArrayList<String> keys() {
+			ArrayList<String> keys = new ArrayList<>(size());
+			for (int bucket = 0; bucket < bucketCount; bucket++) {
+				int record = (int) buffer.getLong(HeaderSize + bucket * 8);
+				while (record != 0) {
+					keys.add(new String(readKey(record), Charsets.UTF_8));
+					record = (int) buffer.getLong(record);
+				}
+			}
+
+			return keys;
+		}
+
+		private int findRecord(int hash, byte[] keyBytes) {
+			int record = (int) buffer.getLong(bucketOffset(hash));
+			while (record != 0) {
+				if (buffer.getInt(record + 8) == hash && keyEquals(record, keyBytes))
+					return record;
+
+				record = (int) buffer.getLong(record);
+			}
+
+			return 0;
+		}
+
+		/**
+		 * @return the offset of the link pointing at the record, either its bucket or the record before it in the chain.
+		 */
+		private int findLink(int hash, int record) {
+			int link = bucketOffset(hash);
+			int current = (int) buffer.getLong(link);
+			while (current != 0 && current != record) {
+				link = current;
+				current = (int) buffer.getLong(current);
+			}
+
+			return link;
+		}
+
+		private boolean keyEquals(int record, byte[] keyBytes) {
+			int keyLength = buffer.getInt(record + 12);
+			if (keyLength != keyBytes.length)
+				return false;
+
+			int keyOffset = record + RecordHeaderSize;
+			for (int i = 0; i < keyLength; i++) {
+				if (buffer.get(keyOffset + i) != keyBytes[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		private byte[] readKey(int record) {
+			byte[] keyBytes = new byte[buffer.getInt(record + 12)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(record + RecordHeaderSize);
+			view.get(keyBytes);
+			return keyBytes;
+		}
+
+		private int bucketOffset(int hash) {
+			return HeaderSize + ((hash & 0x7fffffff) % bucketCount) * 8;
+		}
+
+		private int valueOffset(int record) {
+			return record + RecordHeaderSize + buffer.getInt(record + 12);
+		}
+
+		private int recordSize(int record) {
+			return valueOffset(record) + 4 + buffer.getInt(valueOffset(record)) - record;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the persistence work of all the storage groups on a shared bounded pool.<br>
+ * Each group gets its own {@link GroupQueue}, which executes the group tasks one at a time and in order, while different groups proceed in parallel.
+ */
+final class PersistenceExecutor
+	implements Executor {
+
+	private final ExecutorService workers;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * @param threads        The max number of groups to persist in parallel.
+	 * @param virtualThreads Whether to run the tasks on virtual threads (when the JVM supports them) instead of the bounded pool.
+	 */
+	PersistenceExecutor(int threads, boolean virtualThreads) {
+		ExecutorService workers = virtualThreads ? createVirtualThreadExecutor() : null;
+		if (workers == null) {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("shared-preferences"));
+			pool.allowCoreThreadTimeOut(true);
+			workers = pool;
+		}
+
+		this.workers = workers;
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("shared-preferences-timer"));
+		// the pending saves are flushed explicitly on shutdown, the delayed ones would only be rejected by the stopped workers
+		timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.timer = timer;
+	}
+
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	final boolean isVirtual() {
+		return !(workers instanceof ThreadPoolExecutor);
+	}
+
+	/**
+	 * Runs the task on the pool right away, outside of any group queue.
+	 */
+	@Override
+	public final void execute(Runnable task) {
+		workers.execute(task);
+	}
+
+	final GroupQueue newGroupQueue() {
+		return new GroupQueue();
+	}
+
+	/**
+	 * Runs the task periodically on the timer thread, the task is expected to only hand work off to the group queues.
+	 */
+	final ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long period) {
+		return timer.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops accepting tasks, the running ones and the ones already queued to the workers are still completed.<br>
+	 * The tasks left in a group queue run on the thread that completes the task before them.
+	 */
+	final void shutdown() {
+		timer.shutdown();
+		workers.shutdown();
+	}
+
+	private static final long DelayResolution = TimeUnit.MILLISECONDS.toNanos(1);
+
+	final class GroupQueue
+		implements Executor {
+
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+		private final Runnable fireScheduled = new Runnable() {
+			@Override
+			public void run() {
+				fireScheduled();
+			}
+		};
+
+		private ScheduledFuture<?> scheduled;
+		private long scheduledAt;
+		private Runnable scheduledTask;
+		private long dueAt;
+		private boolean running;
+
+		@Override
+		public final void execute(Runnable task) {
+			Runnable rejected;
+			synchronized (this) {
+				tasks.add(task);
+				if (running)
+					return;
+
+				rejected = runNext();
+			}
+
+			if (rejected != null)
+				runTask(rejected);
+		}
+
+		/**
+		 * Schedules the task to be executed after the delay, replacing the previously scheduled task if it did not start yet.<br>
+		 * Postponing the task keeps the timer that is already armed, which re-arms itself for the rest of the delay once it fires, so a burst of
+		 * rescheduling allocates nothing.
+		 */
+		final void schedule(Runnable task, long delay) {
+			if (delay <= 0) {
+				cancelScheduled();
+				execute(task);
+				return;
+			}
+
+			synchronized (this) {
+				scheduledTask = task;
+				dueAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+				// the delays are in ms, a timer due within the same ms is kept
+				if (scheduled != null && scheduledAt - dueAt <= DelayResolution)
+					return;
+
+				if (scheduled != null)
+					scheduled.cancel(false);
+
+				arm();
+			}
+		}
+
+		final synchronized void cancelScheduled() {
+			if (scheduled != null)
+				scheduled.cancel(false);
+
+			scheduled = null;
+			scheduledTask = null;
+		}
+
+		private void arm() {
+			scheduledAt = dueAt;
+			scheduled = timer.schedule(fireScheduled, dueAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		private void fireScheduled() {
+			Runnable task;
+			synchronized (this) {
+				// cancelled, or already executed by a timer that was replaced while it fired
+				if (scheduledTask == null)
+					return;
+
+				if (dueAt - System.nanoTime() > 0) {
+					arm();
+					return;
+				}
+
+				task = scheduledTask;
+				scheduledTask = null;
+				scheduled = null;
+			}
+
+			execute(task);
+		}
+
+		/**
+		 * Must be called holding the monitor of the queue.
+		 *
+		 * @return the next task if the workers were shut down and rejected it, the caller runs it once it released the monitor.
+		 */
+		private Runnable runNext() {
+			final Runnable task = tasks.poll();
+			running = task != null;
+			if (!running)
+				return null;
+
+			try {
+				workers.execute(new Runnable() {
+					@Override
+					public void run() {
+						runTask(task);
+					}
+				});
+				return null;
+			} catch (RejectedExecutionException e) {
+				return task;
+			}
+		}
+
+		/**
+		 * Runs the task and hands the next one to the workers, once they were shut down the rest of the queue runs on this thread instead of being dropped.
+		 */
+		private void runTask(Runnable task) {
+			try {
+				task.run();
+			} finally {
+				Runnable rejected;
+				synchronized (this) {
+					rejected = runNext();
+				}
+
+				if (rejected != null)
+					runTask(rejected);
+			}
+		}
+	}
+
+	private static final class NamedThreadFactory
+		implements ThreadFactory {
+
+		private final AtomicInteger counter = new AtomicInteger();
+		private final String name;
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -21,8 +21,15 @@ package com.nu.art.storage;
 import com.nu.art.core.interfaces.Getter;
 import com.nu.art.core.interfaces.Setter;
 import com.nu.art.modular.core.ModuleManager;
+import com.nu.art.storage.PreferencesModule.Durability;
+import com.nu.art.storage.PreferencesModule.Storage;
+import com.nu.art.storage.PreferencesModule.StorageChangeListener;
 import com.nu.art.storage.PreferencesModule.StorageImpl;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
 import static com.nu.art.storage.PreferencesModule.DefaultStorageGroup;
 import static com.nu.art.storage.PreferencesModule.EXPIRES_POSTFIX;
 
@@ -42,15 +49,23 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 
 	protected String key;
 
+	protected String expiresKey;
+
 	protected String storageGroup = DefaultStorageGroup;
 
 	protected ItemType defaultValue;
 
 	protected long expires = -1;
 
+	/**
+	 * The storage group this key is bound to, resolved on first access and dropped when the group is disposed.
+	 */
+	private StorageImpl storage;
+
 	public PreferenceType setKey(String key, ItemType defaultValue) {
 		this.defaultValue = defaultValue;
 		this.key = key;
+		this.expiresKey = key + EXPIRES_POSTFIX;
 		return (PreferenceType) this;
 	}
 
@@ -59,6 +74,7 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 			storageGroup = DefaultStorageGroup;
 
 		this.storageGroup = storageGroup;
+		this.storage = null;
 		return (PreferenceType) this;
 	}
 
@@ -72,14 +88,25 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 		return (PreferenceType) this;
 	}
 
+	public final void addChangeListener(StorageChangeListener listener) {
+		getPrefsModule().addChangeListener(storageGroup, key, listener);
+	}
+
+	public final void removeChangeListener(StorageChangeListener listener) {
+		getPrefsModule().removeChangeListener(storageGroup, key, listener);
+	}
+
 	public final ItemType get() {
 		return get(false);
 	}
 
 	public ItemType get(boolean printToLog) {
-		StorageImpl preferences = getPreferences();
+		return get(getPreferences(), printToLog);
+	}
+
+	private ItemType get(StorageImpl preferences, boolean printToLog) {
 		ItemType cache;
-		if (expires == -1 || System.currentTimeMillis() - preferences.get(key + EXPIRES_POSTFIX, -1L) < expires) {
+		if (!isExpired(preferences)) {
 			cache = _get(preferences, key, defaultValue);
 			if (printToLog)
 				getPrefsModule().logInfo("+----+ LOADED: " + key + ": " + cache);
@@ -92,8 +119,59 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 		}
 	}
 
+	/**
+	 * Loads the storage group on the persistence threads if needed, the calling thread never waits for the disk.
+	 */
+	public final CompletableFuture<ItemType> getAsync() {
+		return getPrefsModule().getStorageAsync(storageGroup).thenApply(new Function<Storage, ItemType>() {
+			@Override
+			public ItemType apply(Storage storage) {
+				// the key is bound by the calling thread, not by the pool
+				return get((StorageImpl) storage, false);
+			}
+		});
+	}
+
+	protected final boolean isExpired(StorageImpl preferences) {
+		if (expires == -1)
+			return false;
+
+		long expiresAt = preferences.getExpiresAt(key);
+		if (expiresAt == 0)
+			expiresAt = migrateLegacyExpiration(preferences);
+
+		// a value without an expiration, for a key that expires, is treated as expired
+		return expiresAt == 0 || System.currentTimeMillis() >= expiresAt;
+	}
+
+	/**
+	 * Converts the legacy shadow key, holding the time the value was written at, into the storage expiration of the value.
+	 *
+	 * @return the time the value expires at, or 0 if there was no legacy expiration.
+	 */
+	private long migrateLegacyExpiration(StorageImpl preferences) {
+		long writtenAt = preferences.get(expiresKey, -1L);
+		if (writtenAt == -1)
+			return 0;
+
+		preferences.remove(expiresKey);
+		if (preferences.get(key) == null)
+			return 0;
+
+		preferences.expireAt(key, writtenAt + expires);
+		return writtenAt + expires;
+	}
+
 	StorageImpl getPreferences() {
-		return (StorageImpl) getPrefsModule().getStorage(storageGroup);
+		StorageImpl storage = this.storage;
+		if (storage != null && storage.isCurrent())
+			return storage;
+
+		if (storage == null || storage.isDisposed())
+			return this.storage = (StorageImpl) getPrefsModule().getStorage(storageGroup);
+
+		storage.reloadIfStale();
+		return storage;
 	}
 
 	private PreferencesModule getPrefsModule() {
@@ -106,18 +184,50 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 		set(value, true);
 	}
 
-	public void set(final ItemType value, boolean printToLog) {
-		ItemType savedValue = get(false);
+	public void set(ItemType value, boolean printToLog) {
+		set(getPreferences(), value, printToLog);
+	}
+
+	protected void set(final StorageImpl storage, final ItemType value, boolean printToLog) {
+		ItemType savedValue = get(storage, false);
 		if (areEquals(savedValue, value))
 			return;
 
-		final StorageImpl storage = getPreferences();
 		if (printToLog)
 			logInfo("+----+ SET: " + key + ": " + value);
 
-		_set(storage, key, value);
-		if (expires != -1)
-			storage.put(key + EXPIRES_POSTFIX, System.currentTimeMillis());
+		write(storage, new Runnable() {
+			@Override
+			public void run() {
+				_set(storage, key, value);
+			}
+		});
+	}
+
+	/**
+	 * Sets the value once the storage group is loaded, and saves it right away.<br>
+	 * The value is set on the common pool, since a {@link Durability#SyncCommit} group blocks the setter until it is saved by the persistence threads.
+	 *
+	 * @return a future that completes once the value is written.
+	 */
+	public final CompletableFuture<Void> setAsync(final ItemType value) {
+		return getPrefsModule().getStorageAsync(storageGroup).thenComposeAsync(new Function<Storage, CompletionStage<Void>>() {
+			@Override
+			public CompletionStage<Void> apply(Storage storage) {
+				set((StorageImpl) storage, value, true);
+				return storage.flush();
+			}
+		});
+	}
+
+	/**
+	 * Runs the write of a new value, the value of a key that expires is written together with its expiration as a single mutation.
+	 */
+	protected final void write(StorageImpl storage, Runnable write) {
+		if (expires == -1)
+			write.run();
+		else
+			storage.writeExpiring(key, System.currentTimeMillis() + expires, write);
 	}
 
 	protected boolean areEquals(ItemType s1, ItemType s2) {
@@ -127,7 +237,14 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 	protected abstract void _set(StorageImpl preferences, String key, ItemType value);
 
 	public final void clearExpiration() {
-		getPreferences().put(key + EXPIRES_POSTFIX, -1L);
+		StorageImpl preferences = getPreferences();
+		preferences.clearExpiration(key);
+		removeLegacyExpiration(preferences);
+	}
+
+	private void removeLegacyExpiration(StorageImpl preferences) {
+		if (preferences.get(expiresKey) != null)
+			preferences.remove(expiresKey);
 	}
 
 	private void removeValue() {
@@ -136,10 +253,14 @@ abstract class PreferenceKey<PreferenceType, ItemType>
 
 	public void delete() {
 		logInfo("+----+ DELETE: " + key);
-		clearExpiration();
+		removeLegacyExpiration(getPreferences());
 		removeValue();
 	}
 
+	boolean isDebugEnabled() {
+		return getPrefsModule().DebugFlag.isEnabled();
+	}
+
 	void logDebug(String s) {
 		getPrefsModule().logDebug(s);
 	}
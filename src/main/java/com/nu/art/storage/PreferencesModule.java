@@ -27,15 +27,46 @@ import com.nu.art.core.generics.Processor;
 import com.nu.art.core.interfaces.Serializer;
 import com.nu.art.core.tools.ExceptionTools;
 import com.nu.art.core.tools.FileTools;
-import com.nu.art.core.utils.JavaHandler;
 import com.nu.art.core.utils.ThreadMonitor.RunnableMonitor;
 import com.nu.art.modular.core.Module;
-
+import com.nu.art.storage.ExpirySweeper.ExpiringStorage;
+import com.nu.art.storage.ExpirySweeper.ExpiringValue;
+import com.nu.art.storage.PersistenceExecutor.GroupQueue;
+import com.nu.art.storage.PrimitiveSlot.BooleanSlot;
+import com.nu.art.storage.PrimitiveSlot.DoubleSlot;
+import com.nu.art.storage.PrimitiveSlot.FloatSlot;
+import com.nu.art.storage.PrimitiveSlot.IntSlot;
+import com.nu.art.storage.PrimitiveSlot.LongSlot;
+import com.nu.art.storage.StorageChangeDetector.WatchedStorage;
+import com.nu.art.storage.StorageJournal.Record;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 @SuppressWarnings( {
 	                   "unused",
@@ -60,6 +91,62 @@ public final class PreferencesModule
 		 * Will save the preference - synchronously
 		 */
 		void save();
+
+		/**
+		 * Saves the mutations made so far on the persistence queue of the storage, instead of waiting for the scheduled save.
+		 *
+		 * @return a future that completes once the mutations made before this call are written, or completes exceptionally if writing them failed.
+		 */
+		CompletableFuture<Void> flush();
+
+		/**
+		 * Reads the stored form of a value without decoding it, a spilled value is streamed from its side file.
+		 *
+		 * @return a stream over the stored bytes of the value, or null if there is no value for the key.
+		 */
+		InputStream openStream(String key)
+			throws IOException;
+
+		/**
+		 * @return a read only buffer holding the stored bytes of the value, or null if there is no value for the key.
+		 */
+		ByteBuffer getBuffer(String key)
+			throws IOException;
+
+		/**
+		 * @return counters of the saves of this storage, and how many mutations each of them coalesced.
+		 */
+		SaveMetrics getSaveMetrics();
+
+		/**
+		 * @return a new editor, the changes made through it are only applied to the storage when it is committed.
+		 */
+		Editor edit();
+	}
+
+	/**
+	 * A batch of changes to a storage, which are published to readers all at once and persisted by a single save.
+	 */
+	public interface Editor {
+
+		Editor putBoolean(String key, boolean value);
+
+		Editor putInt(String key, int value);
+
+		Editor putLong(String key, long value);
+
+		Editor putFloat(String key, float value);
+
+		Editor putDouble(String key, double value);
+
+		Editor putString(String key, String value);
+
+		Editor remove(String key);
+
+		/**
+		 * Applies all the changes under a single lock acquisition, and schedules a single save for all of them.
+		 */
+		void commit();
 	}
 
 	public interface StorageListener {
@@ -69,20 +156,303 @@ public final class PreferencesModule
 		void onLoadingError(IOException e);
 	}
 
+	/**
+	 * Notified on the change dispatcher thread about keys that were written, removed or expired, or changed on disk by another writer.
+	 */
+	public interface StorageChangeListener {
+
+		/**
+		 * @param keys The keys that changed during the last dispatch window, a key subscriber only receives its own key.
+		 */
+		void onStorageChanged(String group, Set<String> keys);
+	}
+
+	/**
+	 * How far a save of a storage group goes to make its data survive a crash.
+	 */
+	public enum Durability {
+		/**
+		 * Saves are debounced and written without syncing, a crash may lose the latest saves (default).
+		 */
+		Async,
+
+		/**
+		 * Saves are debounced, but every file is synced and atomically renamed into place followed by a sync of its folder.<br>
+		 * A completed save survives a crash, and the storage file is never missing from disk.
+		 */
+		AtomicRename,
+
+		/**
+		 * Like {@link #AtomicRename}, but a mutation blocks until it is durable.<br>
+		 * Concurrent mutations are group committed, so that a single save and sync covers all the mutations made while the previous one was in progress.
+		 */
+		SyncCommit,
+	}
+
+	public static final class GroupConfig {
+
+		StorageCodec codec;
+		long minSaveDelay = 100;
+		long maxSaveDelay = 1000;
+		boolean memoryMapped;
+		boolean lazyLoading;
+		boolean journaled;
+		long maxJournalSize = 256 * 1024;
+		float maxJournalRatio = 1f;
+		int shards = 1;
+		Durability durability = Durability.Async;
+		boolean multiProcess;
+		int spillThreshold;
+
+		/**
+		 * @param codec The on disk format of the group, defaults to json using the module gson.<br>
+		 *              An existing file in the other known format is migrated on its first load.
+		 */
+		public GroupConfig setCodec(StorageCodec codec) {
+			this.codec = codec;
+			return this;
+		}
+
+		/**
+		 * @param minSaveDelay The minimal debounce in ms between a mutation and the save, it grows with the write rate to coalesce bursts.
+		 * @param maxSaveDelay The maximal time in ms a mutation may wait to be saved, regardless of the writes that follow it.
+		 */
+		public GroupConfig setSaveDelay(long minSaveDelay, long maxSaveDelay) {
+			this.minSaveDelay = minSaveDelay;
+			this.maxSaveDelay = maxSaveDelay;
+			return this;
+		}
+
+		/**
+		 * When enabled, the group is kept in a memory mapped file with an on disk hash index, instead of on the heap.<br>
+		 * Reads go straight to the mapped region, writes update the records in place, and a save only forces the mapped pages to disk.
+		 */
+		public GroupConfig setMemoryMapped(boolean memoryMapped) {
+			this.memoryMapped = memoryMapped;
+			return this;
+		}
+
+		/**
+		 * When enabled, opening the group only builds a key to offset index over the mapped storage file, and each value is decoded on its first read.<br>
+		 * Requires the {@link BinaryStorageCodec}, whose length prefixed entries can be skipped without decoding them.
+		 */
+		public GroupConfig setLazyLoading(boolean lazyLoading) {
+			this.lazyLoading = lazyLoading;
+			return this;
+		}
+
+		/**
+		 * When enabled, every mutation is appended to a per group journal file instead of rewriting the whole storage file.<br>
+		 * The journal is replayed on top of the last snapshot on load, and folded into a new snapshot once it grows past the compaction threshold.
+		 */
+		public GroupConfig setJournaled(boolean journaled) {
+			this.journaled = journaled;
+			return this;
+		}
+
+		/**
+		 * @param maxJournalSize  The journal size in bytes above which it would be compacted into a new snapshot.
+		 * @param maxJournalRatio The journal to snapshot size ratio above which the journal would be compacted into a new snapshot.
+		 */
+		public GroupConfig setCompactionThreshold(long maxJournalSize, float maxJournalRatio) {
+			this.maxJournalSize = maxJournalSize;
+			this.maxJournalRatio = maxJournalRatio;
+			return this;
+		}
+
+		/**
+		 * @param shards The number of files to split the group across by key hash, defaults to 1.<br>
+		 *               Each shard is saved on its own, so a flush only rewrites the shards that changed, and different shards are written in parallel.<br>
+		 *               An existing single file group is split on its first load.
+		 */
+		public GroupConfig setShards(int shards) {
+			this.shards = shards;
+			return this;
+		}
+
+		/**
+		 * @param durability How far a save goes to make the data survive a crash, see {@link Durability}.
+		 */
+		public GroupConfig setDurability(Durability durability) {
+			this.durability = durability;
+			return this;
+		}
+
+		/**
+		 * When enabled, the group files may be shared with other processes, and the group is journaled.<br>
+		 * Saves take an OS level lock and first merge the records other processes appended, so no process overwrites the keys of another.
+		 * A change made by another process is merged record by record instead of reloading the whole group.
+		 */
+		public GroupConfig setMultiProcess(boolean multiProcess) {
+			this.multiProcess = multiProcess;
+			if (multiProcess)
+				journaled = true;
+			return this;
+		}
+
+		/**
+		 * @param spillThreshold The size in bytes above which string, binary and json values are stored in side files named by their content, or 0 (default) to keep all values in the group file.<br>
+		 *                       The group file only references a spilled value, so saving or loading the group does not touch it, and it is read from disk when it is first accessed.<br>
+		 *                       Resolved values are softly cached until the group is cleared from memory.
+		 */
+		public GroupConfig setSpillThreshold(int spillThreshold) {
+			this.spillThreshold = spillThreshold;
+			return this;
+		}
+	}
+
 	final class StorageImpl
-		implements Storage {
+		implements Storage, WatchedStorage, ExpiringStorage {
+
+		/**
+		 * Readers never lock, all mutations and snapshots are serialized on the {@link #writeLock}.<br>
+		 * Null values are not stored, a key set to null is removed.
+		 */
+		private final ConcurrentHashMap<String, Object> data = new ConcurrentHashMap<>();
+		private final Object writeLock = new Object();
+		private final Object loadLock = new Object();
+		private final ArrayList<Record> pendingRecords = new ArrayList<>();
 
-		private final HashMap<String, Object> data = new HashMap<>();
+		/**
+		 * The keys mutated since the changes were last published, only collected while the group has subscribers.
+		 */
+		private final ArrayList<String> changedKeys = new ArrayList<>();
+		private final GroupConfig config;
+		private final SaveScheduler saveScheduler;
+		private volatile GroupQueue persistenceQueue;
 		private long lastModified;
+		private long snapshotLength;
+		private boolean compactionRequested;
 		private String name;
 		private File storageFile;
+		private StorageCodec codec;
+		private StorageJournal journal;
+		private MappedStorageFile mapped;
+
+		/**
+		 * The expirations of a memory mapped group, which persists them as separate records and indexes them here when it is opened,
+		 * so reading or writing a key without one never builds or reads its expiration record.
+		 */
+		private final ConcurrentHashMap<String, Long> mappedExpirations = new ConcurrentHashMap<>();
+		private StorageShards shards;
+		private StorageLock processLock;
+
+		/**
+		 * The version of the shared files the data reflects, guarded by the {@link #processLock}.
+		 */
+		private long knownGeneration;
+		private long knownVersion;
+		private boolean sharedLoaded;
+		private GroupQueue[] shardQueues;
+		private int pendingShardWrites;
+		private int shardWriteFailures;
+		private StorageBlobs blobs;
+
+		/**
+		 * Set by a {@link Durability#SyncCommit} mutation that queued a save, cleared once the save starts, so concurrent committers share it.
+		 */
+		private final AtomicBoolean commitRequested = new AtomicBoolean();
+		private final Object commitLock = new Object();
+
+		/**
+		 * The mutation version up to which the saves were attempted, guarded by the {@link #commitLock}.
+		 */
+		private long committedVersion;
+		private volatile LazyStorageIndex lazyIndex;
+
+		/**
+		 * The batch being committed, published before it is applied to the data, so readers see either none or all of it.
+		 */
+		private volatile HashMap<String, Object> committing;
+		private volatile boolean stale = true;
+		private volatile boolean unwatched = true;
+		private volatile boolean disposed;
+
+		/**
+		 * Set once a read found the group loaded, watched and untracked, and cleared by anything that changes that, so the steady state read of a
+		 * preference key checks a single flag.
+		 */
+		private volatile boolean current;
+
+		/**
+		 * Incremented under the {@link #writeLock} by every mutation of the data.
+		 */
+		private volatile long mutationVersion;
+
+		/**
+		 * The mutation version captured by the last save, or -1 if a save failed and the persisted state is unknown.<br>
+		 * A group whose data is at its persisted version has nothing to flush and may be evicted.
+		 */
+		private volatile long persistedVersion;
+
+		/**
+		 * Whether the data was dropped to fit the memory budget, it is loaded again on the next access.
+		 */
+		private volatile boolean evicted;
+
+		/**
+		 * Whether the files are being loaded, the data is dropped before they are read so a reader waits for the load instead.
+		 */
+		private volatile boolean loading;
+
+		/**
+		 * The estimated heap size of the data, maintained under the {@link #writeLock}.
+		 */
+		private volatile long weight;
+
+		/**
+		 * The change to the {@link #weight} by the mutations of a journaled group since its last save, which does not snapshot the whole data.
+		 */
+		private long journaledWeight;
+		private int loadGeneration;
 
-		private StorageImpl(String name) {
+		/**
+		 * Updated on every access while groups may be evicted or unloaded, without synchronization, the eviction order only needs to be approximately LRU.
+		 */
+		private long lastAccess;
+
+		private StorageImpl(String name, GroupConfig config) {
 			this.name = name;
+			this.config = config;
+			this.lastAccess = System.nanoTime();
+			this.saveScheduler = new SaveScheduler(config.minSaveDelay, config.maxSaveDelay);
 		}
 
 		final StorageImpl setStorageFile(File storageFile) {
 			this.storageFile = storageFile;
+			this.codec = config.codec != null ? config.codec : new JsonStorageCodec(gson);
+			if (config.memoryMapped && config.journaled)
+				throw new BadImplementationException("A memory mapped storage group cannot be journaled: " + name);
+
+			if (config.lazyLoading && (config.memoryMapped || !(codec instanceof BinaryStorageCodec)))
+				throw new BadImplementationException("Lazy loading is only supported for heap groups using the binary codec: " + name);
+
+			if (config.memoryMapped)
+				mapped = new MappedStorageFile(storageFile);
+
+			if (config.shards > 1 && (config.memoryMapped || config.journaled || config.lazyLoading))
+				throw new BadImplementationException("A sharded storage group cannot be memory mapped, journaled or lazily loaded: " + name);
+
+			if (config.multiProcess && (config.memoryMapped || config.lazyLoading || config.shards > 1))
+				throw new BadImplementationException("A multi process storage group cannot be memory mapped, lazily loaded or sharded: " + name);
+
+			if (config.spillThreshold > 0 && (config.memoryMapped || config.lazyLoading || config.shards > 1 || config.multiProcess))
+				throw new BadImplementationException("A storage group spilling large values cannot be memory mapped, lazily loaded, sharded or multi process: " + name);
+
+			if (config.journaled)
+				journal = new StorageJournal(storageFile, codec);
+
+			if (config.spillThreshold > 0)
+				blobs = new StorageBlobs(storageFile, config.spillThreshold);
+
+			if (config.multiProcess)
+				processLock = new StorageLock(storageFile);
+
+			if (config.shards > 1) {
+				shards = new StorageShards(storageFile, config.shards);
+				shardQueues = new GroupQueue[config.shards];
+			}
+
 			return this;
 		}
 
@@ -91,6 +461,9 @@ public final class PreferencesModule
 			if (value == null)
 				return defaultValue;
 
+			if (value instanceof BooleanSlot)
+				return ((BooleanSlot) value).value;
+
 			if (value instanceof Boolean)
 				return (boolean) value;
 
@@ -153,162 +526,2082 @@ public final class PreferencesModule
 		}
 
 		final Object get(String key) {
-			synchronized (data) {
-				return data.get(key);
+			Object value = getStored(key);
+			if (blobs == null || !StorageBlobs.isReference(value))
+				return value;
+
+			try {
+				return blobs.resolve((String) value);
+			} catch (IOException e) {
+				dispatchLoadingError(e);
+				return null;
 			}
 		}
 
-		final void put(String key, Object value) {
-			synchronized (data) {
-				data.put(key, value);
-			}
-			_save();
+		@Override
+		public InputStream openStream(String key)
+			throws IOException {
+			Object value = getStored(key);
+			if (value == null)
+				return null;
+
+			if (blobs != null && StorageBlobs.isReference(value))
+				return blobs.open((String) value);
+
+			return new ByteArrayInputStream(toBytes(value));
 		}
 
-		final void remove(String key) {
-			synchronized (data) {
-				data.remove(key);
-			}
-			_save();
+		@Override
+		public ByteBuffer getBuffer(String key)
+			throws IOException {
+			Object value = getStored(key);
+			if (value == null)
+				return null;
+
+			if (blobs != null && StorageBlobs.isReference(value))
+				return blobs.read((String) value).asReadOnlyBuffer();
+
+			return ByteBuffer.wrap(toBytes(value)).asReadOnlyBuffer();
 		}
 
-		public final void clear() {
-			clearMemCache();
-			_save(0);
-			savingHandler.post(new Runnable() {
-				@Override
-				public void run() {
-					synchronized (data) {
-						lastModified = 0;
-					}
-				}
-			});
+		private byte[] toBytes(Object value) {
+			if (value instanceof byte[])
+				return (byte[]) value;
+
+			if (value instanceof String)
+				return ((String) value).getBytes(Charsets.UTF_8);
+
+			return gson.toJson(value).getBytes(Charsets.UTF_8);
 		}
 
-		public final void clearMemCache() {
-			synchronized (data) {
-				if (DebugFlag.isEnabled())
-					logInfo("Clearing mem cache for: '" + name + "'");
+		/**
+		 * Called before taking the write lock, so readers and other writers do not wait for the side file to be written.<br>
+		 * The returned value must be passed to {@link StorageBlobs#release(Object)} once it was published, or dropped.
+		 *
+		 * @return a reference to the side file the value was written to, or the value itself if it is not spilled.
+		 */
+		private Object spill(Object value) {
+			if (blobs == null)
+				return value;
 
-				data.clear();
+			try {
+				return blobs.spill(value, isDurable());
+			} catch (IOException e) {
+				// the value is kept in the group file instead
+				dispatchSavingError(e);
+				return value;
 			}
 		}
 
-		private Runnable save = new RunnableMonitor(new Runnable() {
-			@Override
-			public void run() {
+		private HashSet<String> collectReferences() {
+			HashSet<String> referenced = new HashSet<>();
+			synchronized (writeLock) {
+				for (Object value : data.values()) {
+					StorageBlobs.collectReference(value, referenced);
+				}
+			}
+			return referenced;
+		}
+
+		/**
+		 * @return the value as it is kept in the group, a spilled value is returned as its reference.
+		 */
+		private Object getStored(String key) {
+			if (mapped != null)
 				try {
-					if (DebugFlag.isEnabled())
-						logInfo("Saving: " + name);
+					Object value = mapped.get(key);
+					if (value == null)
+						return null;
+
+					Long expiresAt = mappedExpirations.get(key);
+					return expiresAt != null && System.currentTimeMillis() >= expiresAt ? null : value;
+				} catch (IOException e) {
+					dispatchLoadingError(e);
+					return null;
+				}
 
-					HashMap<String, Object> temp;
-					synchronized (data) {
-						temp = new HashMap<>(data);
-					}
+			HashMap<String, Object> committing = this.committing;
+			if (committing != null) {
+				Object value = committing.get(key);
+				if (value != null)
+					return value == Removed ? null : value;
+			}
 
-					File tempFile = getTempStorageFile();
+			Object value = data.get(key);
+			// a writer must not wait for a load in progress, the load needs the write lock to complete
+			if (value == null && (evicted || loading && !Thread.holdsLock(writeLock))) {
+				reloadIfStale();
+				value = data.get(key);
+			}
 
-					FileTools.writeToFile(gson.toJson(temp), tempFile, Charsets.UTF_8);
-					FileTools.delete(storageFile);
-					FileTools.renameFile(tempFile, storageFile);
-					synchronized (data) {
-						lastModified = storageFile.lastModified();
-					}
+			LazyStorageIndex lazyIndex = this.lazyIndex;
+			if (value != null || lazyIndex == null || !lazyIndex.contains(key))
+				return unwrapExpiring(value);
 
-					//					logInfo("Saved: " + name);
-				} catch (final IOException e) {
-					String exception = e.getMessage() + "\n" + ExceptionTools.getStackTrace(e);
-					dispatchModuleEvent("Error saving shared preferences '" + name + "' to: " + storageFile.getAbsolutePath() + "\n" + exception, StorageListener.class, new Processor<StorageListener>() {
-						@Override
-						public void process(StorageListener listener) {
-							listener.onSavingError(e);
-						}
-					});
+			try {
+				synchronized (writeLock) {
+					if (this.lazyIndex != null && this.lazyIndex.materialize(key, data))
+						addWeight(SizeEstimator.estimate(key, data.get(key)));
+
+					return unwrapExpiring(data.get(key));
 				}
+			} catch (IOException e) {
+				dispatchLoadingError(e);
+				return null;
 			}
-		});
-
-		private File getTempStorageFile() {
-			return new File(storageFile.getParentFile(), storageFile.getName() + ".tmp");
 		}
 
-		@Override
-		public void save() {
-			save.run();
+		private Object unwrapExpiring(Object value) {
+			if (!(value instanceof ExpiringValue))
+				return value;
+
+			ExpiringValue expiring = (ExpiringValue) value;
+			return expiring.isExpired(System.currentTimeMillis()) ? null : expiring.value;
 		}
 
-		private void _save() {
-			_save(100);
+		/**
+		 * @return the time the value of the key expires at, or 0 if it has no value or no expiration.
+		 */
+		final long getExpiresAt(String key) {
+			if (mapped != null) {
+				Long expiresAt = mappedExpirations.get(key);
+				return expiresAt != null ? expiresAt : 0;
+			}
+
+			Object value = data.get(key);
+			if (value == null && (lazyIndex != null || evicted) && get(key) != null)
+				value = data.get(key);
+
+			return value instanceof ExpiringValue ? ((ExpiringValue) value).expiresAt : 0;
 		}
 
-		private void _save(int delay) {
-			savingHandler.remove(save);
-			savingHandler.post(delay, save);
+		/**
+		 * Sets the time the current value of the key expires at, after which it reads as absent and is evicted in the background.
+		 */
+		final void expireAt(String key, long expiresAt) {
+			boolean changed;
+			synchronized (writeLock) {
+				changed = applyExpiration(key, expiresAt);
+			}
+
+			if (changed)
+				_save();
 		}
 
-		@SuppressWarnings("unchecked")
-		private void load() {
+		/**
+		 * Runs the write of the key and sets the time its new value expires at, as a single mutation that is saved once.
+		 */
+		final void writeExpiring(String key, long expiresAt, Runnable write) {
+			boolean changed;
+			synchronized (writeLock) {
+				long version = mutationVersion;
+				write.run();
+				changed = applyExpiration(key, expiresAt) || mutationVersion != version || mapped != null;
+			}
 
-			synchronized (data) {
-				if (!storageFile.exists() || storageFile.lastModified() <= lastModified)
-					return;
+			if (changed)
+				_save();
+		}
 
-				clearMemCache();
-				lastModified = 0;
+		/**
+		 * Must be called under the write lock.
+		 *
+		 * @return true if the expiration of the key changed.
+		 */
+		private boolean applyExpiration(String key, long expiresAt) {
+			if (mapped != null) {
+				assertWritable();
+				try {
+					if (mapped.get(key) == null)
+						return false;
+
+					mapped.put(EXPIRY_PREFIX + key, expiresAt);
+					mappedExpirations.put(key, expiresAt);
+				} catch (IOException e) {
+					dispatchSavingError(e);
+					return false;
+				}
+
+				expirySweeper.schedule(this, key, expiresAt);
+				return true;
 			}
 
-			FileReader storageFileReader = null;
 			try {
-				if (!storageFile.exists()) {
-					File tempFile = getTempStorageFile();
-					if (!tempFile.exists()) {
-						logInfo("No storage file to load");
-						return;
-					}
+				restoreIfEvicted();
+				if (lazyIndex != null)
+					lazyIndex.materialize(key, data);
+			} catch (IOException e) {
+				dispatchLoadingError(e);
+				return false;
+			}
 
-					logWarning("storage file did not exist, but could find the temp file... loading preference from temp file");
-					FileTools.renameFile(tempFile, storageFile);
-				}
+			Object current = data.get(key);
+			if (current == null)
+				return false;
 
-				if (DebugFlag.isEnabled())
-					logInfo("Loading: " + name);
+			if (current instanceof ExpiringValue) {
+				if (((ExpiringValue) current).expiresAt == expiresAt)
+					return false;
 
-				storageFileReader = new FileReader(storageFile);
-				HashMap map = gson.fromJson(storageFileReader, HashMap.class);
-				if (map != null) {
-					logInfo("Loaded Storage: " + name + " from: " + storageFile);//, new WhoCalledThis("load storage"));
-					synchronized (data) {
-						data.putAll(map);
-						lastModified = storageFile.lastModified();
+				current = ((ExpiringValue) current).value;
+			}
+
+			beginMutation(key);
+			data.put(key, new ExpiringValue(current, expiresAt));
+			expirySweeper.schedule(this, key, expiresAt);
+			if (journal != null)
+				pendingRecords.add(Record.put(EXPIRY_PREFIX + key, expiresAt));
+
+			return true;
+		}
+
+		/**
+		 * Removes the expiration of the key, keeping its value.
+		 */
+		final void clearExpiration(String key) {
+			if (mapped != null) {
+				assertWritable();
+				removeMappedExpiration(key);
+				_save();
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (!(current instanceof ExpiringValue))
+					return;
+
+				beginMutation(key);
+				putData(key, ((ExpiringValue) current).value);
+			}
+			_save();
+		}
+
+		@Override
+		public void sweep(String key) {
+			// the group that replaced a disposed one schedules its own sweeps when it loads
+			if (disposed)
+				return;
+
+			long now = System.currentTimeMillis();
+			if (mapped != null) {
+				Long expiresAt = mappedExpirations.get(key);
+				if (expiresAt == null)
+					return;
+
+				if (now < expiresAt) {
+					expirySweeper.schedule(this, key, expiresAt);
+					return;
+				}
+
+				remove(key);
+				return;
+			}
+
+			synchronized (writeLock) {
+				Object current = data.get(key);
+				if (!(current instanceof ExpiringValue))
+					return;
+
+				ExpiringValue expiring = (ExpiringValue) current;
+				if (!expiring.isExpired(now)) {
+					expirySweeper.schedule(this, key, expiring.expiresAt);
+					return;
+				}
+
+				if (DebugFlag.isEnabled())
+					logInfo("Expired: " + name + "/" + key);
+
+				beginMutation(key);
+				putData(key, null);
+			}
+			_save();
+		}
+
+		final void put(String key, Object value) {
+			if (mapped != null) {
+				assertWritable();
+				try {
+					synchronized (mapped) {
+						if (isMappedUnchanged(key, value))
+							return;
+
+						removeMappedExpiration(key);
+						mapped.put(key, value);
+					}
+				} catch (IOException e) {
+					dispatchSavingError(e);
+					return;
+				}
+
+				changeDispatcher.onChanged(name, Collections.singleton(key));
+				_save();
+				return;
+			}
+
+			value = spill(value);
+			try {
+				synchronized (writeLock) {
+					if (isUnchanged(key, value))
+						return;
+
+					beginMutation(key);
+					putData(key, value);
+					if (lazyIndex != null)
+						lazyIndex.remove(key);
+
+					if (journal != null)
+						pendingRecords.add(Record.put(key, value));
+				}
+			} finally {
+				if (blobs != null)
+					blobs.release(value);
+			}
+			_save();
+		}
+
+		final void putBoolean(String key, boolean value) {
+			if (mapped != null) {
+				put(key, value);
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (current instanceof BooleanSlot && ((BooleanSlot) current).value == value)
+					return;
+
+				beginMutation(key);
+				if (current instanceof BooleanSlot)
+					((BooleanSlot) current).value = value;
+				else
+					putData(key, new BooleanSlot(value));
+
+				onPrimitivePut(key);
+			}
+			_save();
+		}
+
+		final void putInt(String key, int value) {
+			if (mapped != null) {
+				put(key, value);
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (current instanceof IntSlot && ((IntSlot) current).value == value)
+					return;
+
+				beginMutation(key);
+				if (current instanceof IntSlot)
+					((IntSlot) current).value = value;
+				else
+					putData(key, new IntSlot(value));
+
+				onPrimitivePut(key);
+			}
+			_save();
+		}
+
+		final void putLong(String key, long value) {
+			if (mapped != null) {
+				put(key, value);
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (current instanceof LongSlot && ((LongSlot) current).value == value)
+					return;
+
+				beginMutation(key);
+				if (current instanceof LongSlot)
+					((LongSlot) current).value = value;
+				else
+					putData(key, new LongSlot(value));
+
+				onPrimitivePut(key);
+			}
+			_save();
+		}
+
+		final void putFloat(String key, float value) {
+			if (mapped != null) {
+				put(key, value);
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (current instanceof FloatSlot && Float.compare(((FloatSlot) current).value, value) == 0)
+					return;
+
+				beginMutation(key);
+				if (current instanceof FloatSlot)
+					((FloatSlot) current).value = value;
+				else
+					putData(key, new FloatSlot(value));
+
+				onPrimitivePut(key);
+			}
+			_save();
+		}
+
+		final void putDouble(String key, double value) {
+			if (mapped != null) {
+				put(key, value);
+				return;
+			}
+
+			synchronized (writeLock) {
+				restoreIfEvicted();
+				Object current = data.get(key);
+				if (current instanceof DoubleSlot && Double.compare(((DoubleSlot) current).value, value) == 0)
+					return;
+
+				beginMutation(key);
+				if (current instanceof DoubleSlot)
+					((DoubleSlot) current).value = value;
+				else
+					putData(key, new DoubleSlot(value));
+
+				onPrimitivePut(key);
+			}
+			_save();
+		}
+
+		/**
+		 * Must be called under the write lock, after the slot of the key was updated.
+		 */
+		private void onPrimitivePut(String key) {
+			if (lazyIndex != null)
+				lazyIndex.remove(key);
+
+			if (journal != null)
+				pendingRecords.add(Record.put(key, ((PrimitiveSlot) data.get(key)).box()));
+		}
+
+		/**
+		 * Must be called under the write lock before mutating the data.<br>
+		 * An evicted group is loaded first, so the mutation is applied on top of its persisted state rather than on an empty one.
+		 */
+		private void beginMutation() {
+			assertWritable();
+			restoreIfEvicted();
+			mutationVersion++;
+		}
+
+		/**
+		 * Must be called under the write lock.
+		 *
+		 * @return true if the key already holds the value without an expiration, so writing it would change nothing.
+		 */
+		private boolean isUnchanged(String key, Object value) {
+			restoreIfEvicted();
+			Object current = data.get(key);
+			if (value == null)
+				return current == null && (lazyIndex == null || !lazyIndex.contains(key));
+
+			return value.equals(current instanceof PrimitiveSlot ? ((PrimitiveSlot) current).box() : current);
+		}
+
+		/**
+		 * Must be called holding the monitor of the mapped file.
+		 *
+		 * @return true if the mapped group already holds the value without an expiration, so writing it would change nothing.
+		 */
+		private boolean isMappedUnchanged(String key, Object value)
+			throws IOException {
+			if (mappedExpirations.containsKey(key))
+				return false;
+
+			Object current = mapped.get(key);
+			if (value == null || current == null)
+				return value == current;
+
+			if (value instanceof byte[] && current instanceof byte[])
+				return Arrays.equals((byte[]) value, (byte[]) current);
+
+			return value.equals(current);
+		}
+
+		/**
+		 * Must be called under the write lock, before reading the data a mutation depends on.
+		 */
+		private void restoreIfEvicted() {
+			if (evicted)
+				load();
+		}
+
+		final boolean isDirty() {
+			return mutationVersion != persistedVersion;
+		}
+
+		private void beginMutation(String key) {
+			beginMutation();
+			onKeyChanged(key);
+			if (shards != null)
+				shards.markDirty(key);
+		}
+
+		/**
+		 * Must be called under the write lock, the change is published once the lock is released.
+		 */
+		private void onKeyChanged(String key) {
+			if (changeDispatcher.isObserved(name))
+				changedKeys.add(key);
+		}
+
+		private void publishChanges() {
+			if (!changeDispatcher.isObserved(name))
+				return;
+
+			ArrayList<String> keys;
+			synchronized (writeLock) {
+				if (changedKeys.isEmpty())
+					return;
+
+				keys = new ArrayList<>(changedKeys);
+				changedKeys.clear();
+			}
+
+			changeDispatcher.onChanged(name, keys);
+		}
+
+		/**
+		 * Must be called under the write lock, drops the expiration of the previous value if it had one.
+		 */
+		private void putData(String key, Object value) {
+			Object previous = value == null ? data.remove(key) : data.put(key, value);
+			if (journal == null)
+				return;
+
+			journaledWeight += (value == null ? 0 : SizeEstimator.estimate(key, value)) - (previous == null ? 0 : SizeEstimator.estimate(key, previous));
+			if (previous instanceof ExpiringValue)
+				pendingRecords.add(Record.remove(EXPIRY_PREFIX + key));
+		}
+
+		/**
+		 * Must be called under the write lock, the module keeps the total of the weights so checking the memory budget costs no scan.
+		 */
+		private void setWeight(long weight) {
+			journaledWeight = 0;
+			addWeight(weight - this.weight);
+		}
+
+		/**
+		 * Must be called under the write lock.
+		 */
+		private void addWeight(long delta) {
+			memoryUsage.addAndGet(delta);
+			weight += delta;
+		}
+
+		private void removeMappedExpiration(String key) {
+			if (mappedExpirations.remove(key) != null)
+				mapped.remove(EXPIRY_PREFIX + key);
+		}
+
+		final void remove(String key) {
+			if (mapped != null) {
+				assertWritable();
+				try {
+					synchronized (mapped) {
+						if (isMappedUnchanged(key, null))
+							return;
+
+						mapped.remove(key);
+						removeMappedExpiration(key);
+					}
+				} catch (IOException e) {
+					dispatchSavingError(e);
+					return;
+				}
+
+				changeDispatcher.onChanged(name, Collections.singleton(key));
+				_save();
+				return;
+			}
+
+			synchronized (writeLock) {
+				if (isUnchanged(key, null))
+					return;
+
+				beginMutation(key);
+				putData(key, null);
+				if (lazyIndex != null)
+					lazyIndex.remove(key);
+
+				if (journal != null)
+					pendingRecords.add(Record.remove(key));
+			}
+			_save();
+		}
+
+		public final void clear() {
+			if (mapped != null) {
+				assertWritable();
+				ArrayList<String> cleared = new ArrayList<>();
+				try {
+					synchronized (mapped) {
+						if (changeDispatcher.isObserved(name))
+							for (String key : mapped.keys()) {
+								if (!key.startsWith(EXPIRY_PREFIX))
+									cleared.add(key);
+							}
+
+						mapped.clear();
+						mappedExpirations.clear();
+					}
+				} catch (IOException e) {
+					dispatchSavingError(e);
+					return;
+				}
+
+				changeDispatcher.onChanged(name, cleared);
+				_save(0);
+				return;
+			}
+
+			synchronized (writeLock) {
+				assertWritable();
+				if (changeDispatcher.isObserved(name)) {
+					changedKeys.addAll(data.keySet());
+					if (lazyIndex != null)
+						changedKeys.addAll(lazyIndex.keys());
+				}
+
+				clearMemory();
+				evicted = false;
+				mutationVersion++;
+				setWeight(0);
+				if (shards != null)
+					shards.markAllDirty();
+
+				if (journal != null) {
+					pendingRecords.add(Record.clear());
+					compactionRequested = true;
+				}
+			}
+			_save(0);
+			getPersistenceQueue().execute(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (writeLock) {
+						lastModified = 0;
+					}
+				}
+			});
+		}
+
+		public final void clearMemCache() {
+			if (mapped != null)
+				return;
+
+			// the debounced save may still be pending or writing, the mutations it covers must reach the disk before the memory is dropped
+			if (!isCommitted())
+				awaitDurable();
+
+			synchronized (writeLock) {
+				// marked before the data is dropped, so a concurrent reader reloads it rather than reading it as absent
+				stale = true;
+				current = false;
+				clearMemory();
+				lastModified = 0;
+			}
+		}
+
+		private void clearMemory() {
+			synchronized (writeLock) {
+				if (DebugFlag.isEnabled())
+					logInfo("Clearing mem cache for: '" + name + "'");
+
+				data.clear();
+				lazyIndex = null;
+				if (blobs != null)
+					blobs.clearCache();
+			}
+		}
+
+		private Runnable save = new RunnableMonitor(new Runnable() {
+			@Override
+			public void run() {
+				saveNow();
+			}
+		});
+
+		/**
+		 * @return false if the save failed, the shards it handed off to their own queues may not be written yet.
+		 */
+		private boolean saveNow() {
+			commitRequested.set(false);
+			// every mutation made before this point is covered by the snapshot this save takes
+			long version = mutationVersion;
+			try {
+				if (mapped == null && !isDirty()) {
+					saveScheduler.onSkippedFlush();
+					if (DebugFlag.isEnabled())
+						logInfo("Nothing to save: " + name);
+					return true;
+				}
+
+				saveScheduler.onFlush();
+				if (DebugFlag.isEnabled())
+					logInfo("Saving: " + name);
+
+				if (mapped != null) {
+					mapped.force();
+					return true;
+				}
+
+				// a load drops the data before reading the files, a snapshot taken meanwhile would save the group empty
+				synchronized (loadLock) {
+					// collected before the write, the blobs referenced after that are protected until the next save
+					HashSet<String> referenced = blobs != null ? collectReferences() : null;
+					if (shards != null)
+						writeShards();
+					else if (processLock != null)
+						commitShared();
+					else if (journal == null || !appendToJournal())
+						writeSnapshot();
+					//					logInfo("Saved: " + name);
+
+					if (referenced != null)
+						blobs.retainOnly(referenced);
+				}
+			} catch (IOException e) {
+				persistedVersion = -1;
+				dispatchSavingError(e);
+				return false;
+			} finally {
+				// committers are released on failure too, the error is reported to the storage listeners
+				onCommitted(version);
+			}
+
+			enforceMemoryBudget(StorageImpl.this);
+			return true;
+		}
+
+		@Override
+		public CompletableFuture<Void> flush() {
+			final CompletableFuture<Void> flushed = new CompletableFuture<>();
+			getPersistenceQueue().execute(new Runnable() {
+				@Override
+				public void run() {
+					final int failures = getShardWriteFailures();
+					if (!saveNow()) {
+						flushed.completeExceptionally(new IOException("Error saving storage: " + name));
+						return;
+					}
+
+					if (shards == null) {
+						flushed.complete(null);
+						return;
+					}
+
+					// the shard queues run in order, so once they drain the shards of the earlier saves were written too
+					CompletableFuture<?>[] drained = new CompletableFuture<?>[shards.count()];
+					for (int shard = 0; shard < drained.length; shard++) {
+						drained[shard] = CompletableFuture.runAsync(NoOp, getShardQueue(shard));
+					}
+
+					CompletableFuture.allOf(drained).whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void ignore, Throwable t) {
+							if (getShardWriteFailures() != failures)
+								flushed.completeExceptionally(new IOException("Error saving a shard of storage: " + name));
+							else
+								flushed.complete(null);
+						}
+					});
+				}
+			});
+			return flushed;
+		}
+
+		private int getShardWriteFailures() {
+			synchronized (writeLock) {
+				return shardWriteFailures;
+			}
+		}
+
+		/**
+		 * Unlike {@link #isDirty()}, which is cleared once a save took its snapshot, only true once the file of that save was written.
+		 */
+		private boolean isCommitted() {
+			synchronized (commitLock) {
+				return committedVersion >= mutationVersion;
+			}
+		}
+
+		private void onCommitted(long version) {
+			synchronized (commitLock) {
+				if (version > committedVersion)
+					committedVersion = version;
+
+				commitLock.notifyAll();
+			}
+		}
+
+		/**
+		 * Saves right away and blocks until the mutations made so far by this thread were written and synced.
+		 */
+		private void awaitDurable() {
+			if (mapped != null) {
+				save.run();
+				return;
+			}
+
+			long version = mutationVersion;
+			if (commitRequested.compareAndSet(false, true))
+				getPersistenceQueue().schedule(save, 0);
+
+			synchronized (commitLock) {
+				while (committedVersion < version) {
+					try {
+						commitLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+
+		private boolean isDurable() {
+			return config.durability != Durability.Async;
+		}
+
+		/**
+		 * Drops the data of a clean group, it is loaded again from disk on its next access.<br>
+		 * Runs on the persistence queue of the group so it never overlaps one of its saves.
+		 */
+		private final Runnable evict = new Runnable() {
+			@Override
+			public void run() {
+				long evictedWeight;
+				synchronized (writeLock) {
+					if (isDirty() || evicted || disposed || pendingShardWrites > 0)
+						return;
+
+					evictedWeight = weight;
+					evicted = true;
+					current = false;
+					clearMemory();
+					lastModified = 0;
+					setWeight(0);
+				}
+
+				cacheMetrics.onEviction(evictedWeight);
+				if (DebugFlag.isEnabled())
+					logInfo("Evicted: " + name + " (" + evictedWeight + " bytes)");
+			}
+		};
+
+		/**
+		 * Flushes the group and releases it from the module, if it is still idle and has no unsaved changes by the time it runs.<br>
+		 * Runs on the persistence queue of the group, after any save already scheduled on it.
+		 */
+		private final Runnable unload = new Runnable() {
+			@Override
+			public void run() {
+				if (disposed || !isIdle(System.nanoTime()))
+					return;
+
+				if (isDirty())
+					save.run();
+
+				synchronized (writeLock) {
+					if (isDirty() || pendingShardWrites > 0 || !isIdle(System.nanoTime()))
+						return;
+
+					disposed = true;
+					current = false;
+				}
+
+				getPersistenceQueue().cancelScheduled();
+				storageMap.remove(name, StorageImpl.this);
+				dispose();
+				if (DebugFlag.isEnabled())
+					logInfo("Unloaded idle storage: " + name);
+			}
+		};
+
+		final boolean isIdle(long now) {
+			long idleGroupTimeout = PreferencesModule.this.idleGroupTimeout;
+			return idleGroupTimeout > 0 && now - lastAccess >= idleGroupTimeout * 1000000L;
+		}
+
+		final void scheduleUnload() {
+			getPersistenceQueue().execute(unload);
+		}
+
+		final boolean isEvictable() {
+			return mapped == null && processLock == null && !isDirty() && !evicted && !disposed && weight > 0;
+		}
+
+		final void scheduleEviction() {
+			getPersistenceQueue().execute(evict);
+		}
+
+		private void dispatchSavingError(final IOException e) {
+			String exception = e.getMessage() + "\n" + ExceptionTools.getStackTrace(e);
+			dispatchModuleEvent("Error saving shared preferences '" + name + "' to: " + storageFile.getAbsolutePath() + "\n" + exception, StorageListener.class, new Processor<StorageListener>() {
+				@Override
+				public void process(StorageListener listener) {
+					listener.onSavingError(e);
+				}
+			});
+		}
+
+		private void dispatchLoadingError(final IOException e) {
+			String exception = e.getMessage() + "\n" + ExceptionTools.getStackTrace(e);
+			dispatchModuleEvent("Error loading shared preferences '" + name + "' from: " + storageFile.getAbsolutePath() + "\n" + exception, StorageListener.class, new Processor<StorageListener>() {
+				@Override
+				public void process(StorageListener listener) {
+					listener.onLoadingError(e);
+				}
+			});
+		}
+
+		/**
+		 * @return true if the pending records were appended and the journal is still below the compaction threshold.
+		 */
+		private boolean appendToJournal()
+			throws IOException {
+			ArrayList<Record> records;
+			synchronized (writeLock) {
+				if (compactionRequested)
+					return false;
+
+				records = new ArrayList<>(pendingRecords);
+				pendingRecords.clear();
+				persistedVersion = mutationVersion;
+				addWeight(journaledWeight);
+				journaledWeight = 0;
+			}
+
+			try {
+				journal.append(records, isDurable());
+			} catch (IOException e) {
+				synchronized (writeLock) {
+					compactionRequested = true;
+				}
+				throw e;
+			}
+
+			long journalLength = journal.length();
+			if (journalLength >= config.maxJournalSize || journalLength >= snapshotLength * config.maxJournalRatio) {
+				if (DebugFlag.isEnabled())
+					logInfo("Compacting journal of: " + name + " (" + journalLength + " bytes)");
+
+				return false;
+			}
+
+			synchronized (writeLock) {
+				lastModified = getLastModifiedOnDisk();
+			}
+			return true;
+		}
+
+		/**
+		 * Appends the pending records while holding the exclusive process lock, after merging the records appended by other processes.<br>
+		 * The snapshot is only rewritten under the same lock, once this process is up to date with all the others.
+		 */
+		private void commitShared()
+			throws IOException {
+			processLock.acquire(false);
+			try {
+				if (!mergeSharedChanges())
+					load();
+
+				boolean compact;
+				synchronized (writeLock) {
+					compact = compactionRequested;
+				}
+
+				if (!compact) {
+					ArrayList<Record> records;
+					synchronized (writeLock) {
+						records = new ArrayList<>(pendingRecords);
+						pendingRecords.clear();
+						persistedVersion = mutationVersion;
+						addWeight(journaledWeight);
+						journaledWeight = 0;
+					}
+
+					try {
+						journal.append(records, isDurable());
+					} catch (IOException e) {
+						// the journal may end with a torn record now, only a new snapshot can follow it
+						synchronized (writeLock) {
+							pendingRecords.addAll(0, records);
+							compactionRequested = true;
+						}
+						throw e;
+					}
+
+					long journalLength = journal.length();
+					compact = journalLength >= config.maxJournalSize || journalLength >= snapshotLength * config.maxJournalRatio;
+				}
+
+				long generation = processLock.getGeneration();
+				if (compact) {
+					if (DebugFlag.isEnabled())
+						logInfo("Compacting shared journal of: " + name);
+
+					writeSnapshot();
+					generation++;
+				}
+
+				processLock.update(generation, processLock.getVersion() + 1, isDurable());
+				knownGeneration = generation;
+				knownVersion = processLock.getVersion();
+				sharedLoaded = true;
+				synchronized (writeLock) {
+					lastModified = getLastModifiedOnDisk();
+				}
+			} finally {
+				processLock.release();
+			}
+		}
+
+		/**
+		 * Must be called while holding the process lock.<br>
+		 * Applies the records other processes appended since the last merge, the keys with pending local mutations keep their local value.
+		 *
+		 * @return false if another process rewrote the snapshot meanwhile, and the group has to be loaded in full.
+		 */
+		private boolean mergeSharedChanges()
+			throws IOException {
+			if (processLock.getGeneration() != knownGeneration) {
+				synchronized (writeLock) {
+					lastModified = 0;
+				}
+				return false;
+			}
+
+			if (processLock.getVersion() == knownVersion)
+				return true;
+
+			ArrayList<Record> records = new ArrayList<>();
+			int merged = journal.readNew(records);
+			synchronized (writeLock) {
+				HashSet<String> localKeys = new HashSet<>();
+				for (Record pending : pendingRecords) {
+					// a pending local clear overrides whatever the other processes did before it
+					if (pending.key == null)
+						records.clear();
+					else
+						localKeys.add(pending.key.startsWith(EXPIRY_PREFIX) ? pending.key.substring(EXPIRY_PREFIX.length()) : pending.key);
+				}
+
+				for (Record record : records) {
+					mergeRecord(record, localKeys);
+					if (record.key != null)
+						onKeyChanged(record.key.startsWith(EXPIRY_PREFIX) ? record.key.substring(EXPIRY_PREFIX.length()) : record.key);
+				}
+
+				knownVersion = processLock.getVersion();
+				lastModified = getLastModifiedOnDisk();
+			}
+
+			publishChanges();
+
+			if (DebugFlag.isEnabled() && merged > 0)
+				logInfo("Merged " + merged + " records from other processes into: " + name);
+
+			return true;
+		}
+
+		/**
+		 * Must be called under the write lock, the merged record is already persisted so it is not a mutation of this process.
+		 */
+		private void mergeRecord(Record record, HashSet<String> localKeys) {
+			if (record.key == null) {
+				for (String key : new ArrayList<>(data.keySet())) {
+					if (!localKeys.contains(key))
+						data.remove(key);
+				}
+				return;
+			}
+
+			if (!record.key.startsWith(EXPIRY_PREFIX)) {
+				if (localKeys.contains(record.key))
+					return;
+
+				if (record.removed)
+					data.remove(record.key);
+				else
+					data.put(record.key, record.value);
+				return;
+			}
+
+			String key = record.key.substring(EXPIRY_PREFIX.length());
+			Object current = data.get(key);
+			if (localKeys.contains(key) || current == null)
+				return;
+
+			Object value = current instanceof ExpiringValue ? ((ExpiringValue) current).value : current;
+			if (record.removed || !(record.value instanceof Number)) {
+				data.put(key, value);
+				return;
+			}
+
+			long expiresAt = ((Number) record.value).longValue();
+			data.put(key, new ExpiringValue(value, expiresAt));
+			expirySweeper.schedule(this, key, expiresAt);
+		}
+
+		private void writeSnapshot()
+			throws IOException {
+			HashMap<String, Object> temp;
+			LazyStorageIndex index = null;
+			ArrayList<Record> records = null;
+			synchronized (writeLock) {
+				temp = snapshotData();
+				persistedVersion = mutationVersion;
+				if (lazyIndex != null)
+					index = lazyIndex.copy();
+
+				if (journal != null) {
+					records = new ArrayList<>(pendingRecords);
+					pendingRecords.clear();
+					compactionRequested = false;
+				}
+			}
+
+			// the journal must end up describing the same state as the snapshot, so that a crash before it is deleted replays harmlessly
+			if (journal != null)
+				journal.append(records);
+
+			File tempFile = getTempStorageFile();
+
+			StorageFiles.write(index != null ? ((BinaryStorageCodec) codec).encode(temp, index) : codec.encode(temp), tempFile, isDurable());
+			StorageFiles.replace(tempFile, storageFile, isDurable());
+			if (journal != null)
+				journal.delete();
+
+			synchronized (writeLock) {
+				snapshotLength = storageFile.length();
+				lastModified = getLastModifiedOnDisk();
+			}
+		}
+
+		/**
+		 * Must be called under the write lock, also refreshes the estimated weight of the data.
+		 *
+		 * @return a copy of the data, with the primitive slots boxed.
+		 */
+		private HashMap<String, Object> snapshotData() {
+			long now = System.currentTimeMillis();
+			long weight = 0;
+			HashMap<String, Object> snapshot = new HashMap<>(data.size() * 4 / 3 + 1);
+			for (Entry<String, Object> entry : data.entrySet()) {
+				weight += SizeEstimator.estimate(entry.getKey(), entry.getValue());
+				snapshotEntry(snapshot, entry.getKey(), entry.getValue(), now);
+			}
+
+			setWeight(weight);
+			return snapshot;
+		}
+
+		/**
+		 * Must be called under the write lock, also refreshes the estimated weight of the data.
+		 *
+		 * @return copies of the requested shards, with null in place of the others.
+		 */
+		private ArrayList<HashMap<String, Object>> snapshotShards(boolean[] requested) {
+			long now = System.currentTimeMillis();
+			long weight = 0;
+			ArrayList<HashMap<String, Object>> snapshots = shards.newSplit(requested);
+			for (Entry<String, Object> entry : data.entrySet()) {
+				weight += SizeEstimator.estimate(entry.getKey(), entry.getValue());
+				HashMap<String, Object> snapshot = snapshots.get(shards.shardOf(entry.getKey()));
+				if (snapshot != null)
+					snapshotEntry(snapshot, entry.getKey(), entry.getValue(), now);
+			}
+
+			setWeight(weight);
+			return snapshots;
+		}
+
+		private void snapshotEntry(HashMap<String, Object> snapshot, String key, Object value, long now) {
+			if (value instanceof ExpiringValue) {
+				ExpiringValue expiring = (ExpiringValue) value;
+				if (expiring.isExpired(now))
+					return;
+
+				snapshot.put(EXPIRY_PREFIX + key, expiring.expiresAt);
+				value = expiring.value;
+			}
+
+			snapshot.put(key, value instanceof PrimitiveSlot ? ((PrimitiveSlot) value).box() : value);
+		}
+
+		/**
+		 * Snapshots the shards that changed and hands each of them to its own queue, so they are written in parallel.
+		 */
+		private void writeShards() {
+			boolean[] requested;
+			ArrayList<HashMap<String, Object>> snapshots;
+			synchronized (writeLock) {
+				requested = shards.takeDirty();
+				snapshots = snapshotShards(requested);
+				persistedVersion = mutationVersion;
+				for (boolean shardRequested : requested) {
+					if (shardRequested)
+						pendingShardWrites++;
+				}
+			}
+
+			for (int shard = 0; shard < requested.length; shard++) {
+				if (!requested[shard])
+					continue;
+
+				ShardWrite write = new ShardWrite(shard, snapshots.get(shard));
+				// a committer waits for this save, the shards it hands off to other queues could complete out of order with the next one
+				if (config.durability == Durability.SyncCommit)
+					write.run();
+				else
+					getShardQueue(shard).execute(write);
+			}
+		}
+
+		private final class ShardWrite
+			implements Runnable {
+
+			private final int shard;
+			private final HashMap<String, Object> snapshot;
+
+			private ShardWrite(int shard, HashMap<String, Object> snapshot) {
+				this.shard = shard;
+				this.snapshot = snapshot;
+			}
+
+			@Override
+			public void run() {
+				boolean written = false;
+				try {
+					shards.write(shard, codec.encode(snapshot), isDurable());
+					written = true;
+				} catch (IOException e) {
+					dispatchSavingError(e);
+				} finally {
+					synchronized (writeLock) {
+						pendingShardWrites--;
+						if (!written) {
+							shards.markDirty(shard);
+							persistedVersion = -1;
+							shardWriteFailures++;
+						}
+						lastModified = getLastModifiedOnDisk();
+					}
+				}
+			}
+		}
+
+		private GroupQueue getShardQueue(int shard) {
+			synchronized (shardQueues) {
+				if (shardQueues[shard] == null)
+					shardQueues[shard] = persistenceExecutor.newGroupQueue();
+
+				return shardQueues[shard];
+			}
+		}
+
+		/**
+		 * Splits a group loaded from a single storage file into its shards, and deletes the single file once they are written.
+		 */
+		private void migrateToShards(HashMap<String, Object> map)
+			throws IOException {
+			logInfo("Migrating storage: " + name + " to " + shards.count() + " shards");
+			writeAllShards(map);
+			FileTools.delete(storageFile);
+		}
+
+		/**
+		 * Rewrites shards that were written with a different count, the leftover shards are deleted once all the keys are in their new shards.
+		 */
+		private void reshard(HashMap<String, Object> map)
+			throws IOException {
+			logInfo("Resharding storage: " + name + " to " + shards.count() + " shards");
+			writeAllShards(map);
+			shards.deleteBeyondCount();
+		}
+
+		private void writeAllShards(HashMap<String, Object> map)
+			throws IOException {
+			boolean[] all = new boolean[shards.count()];
+			Arrays.fill(all, true);
+
+			ArrayList<HashMap<String, Object>> split = shards.split(map, all);
+			for (int shard = 0; shard < split.size(); shard++) {
+				shards.write(shard, codec.encode(split.get(shard)), isDurable());
+			}
+		}
+
+		private long getLastModifiedOnDisk() {
+			long lastModified = storageFile.lastModified();
+			if (journal != null)
+				lastModified = Math.max(lastModified, journal.lastModified());
+
+			if (shards != null)
+				lastModified = Math.max(lastModified, shards.lastModified());
+
+			return lastModified;
+		}
+
+		private boolean existsOnDisk() {
+			return storageFile.exists() || journal != null && journal.exists() || shards != null && shards.exists();
+		}
+
+		private File getTempStorageFile() {
+			return new File(storageFile.getParentFile(), storageFile.getName() + ".tmp");
+		}
+
+		@Override
+		public void save() {
+			save.run();
+		}
+
+		@Override
+		public Editor edit() {
+			return new EditorImpl();
+		}
+
+		private void commit(HashMap<String, Object> changes) {
+			if (changes.isEmpty())
+				return;
+
+			if (mapped != null)
+				synchronized (mapped) {
+					assertWritable();
+					try {
+						Iterator<Entry<String, Object>> iterator = changes.entrySet().iterator();
+						while (iterator.hasNext()) {
+							Entry<String, Object> change = iterator.next();
+							if (isMappedUnchanged(change.getKey(), change.getValue() == Removed ? null : change.getValue()))
+								iterator.remove();
+						}
+
+						if (changes.isEmpty())
+							return;
+
+						for (Entry<String, Object> entry : changes.entrySet()) {
+							removeMappedExpiration(entry.getKey());
+							if (entry.getValue() == Removed)
+								mapped.remove(entry.getKey());
+							else
+								mapped.put(entry.getKey(), entry.getValue());
+						}
+					} catch (IOException e) {
+						dispatchSavingError(e);
+						return;
+					}
+					changeDispatcher.onChanged(name, changes.keySet());
+				}
+			else {
+				ArrayList<Object> spilled = null;
+				if (blobs != null) {
+					spilled = new ArrayList<>();
+					for (Entry<String, Object> change : changes.entrySet()) {
+						if (change.getValue() == Removed)
+							continue;
+
+						Object value = spill(change.getValue());
+						change.setValue(value);
+						spilled.add(value);
+					}
+				}
+
+				try {
+					if (!commitUnderLock(changes))
+						return;
+				} finally {
+					if (spilled != null)
+						for (Object reference : spilled) {
+							blobs.release(reference);
+						}
+				}
+			}
+
+			_save((int) saveScheduler.onMutation(System.currentTimeMillis(), changes.size()));
+		}
+
+		/**
+		 * @return false if none of the changes changed the group.
+		 */
+		private boolean commitUnderLock(HashMap<String, Object> changes) {
+			synchronized (writeLock) {
+				Iterator<Entry<String, Object>> iterator = changes.entrySet().iterator();
+				while (iterator.hasNext()) {
+					Entry<String, Object> change = iterator.next();
+					if (isUnchanged(change.getKey(), change.getValue() == Removed ? null : change.getValue()))
+						iterator.remove();
+				}
+
+				if (changes.isEmpty())
+					return false;
+
+				beginMutation();
+				committing = changes;
+				for (Entry<String, Object> entry : changes.entrySet()) {
+					String key = entry.getKey();
+					Object value = entry.getValue() == Removed ? null : entry.getValue();
+					putData(key, value);
+					onKeyChanged(key);
+					if (lazyIndex != null)
+						lazyIndex.remove(key);
+
+					if (shards != null)
+						shards.markDirty(key);
+
+					if (journal != null)
+						pendingRecords.add(value == null ? Record.remove(key) : Record.put(key, value));
+				}
+				committing = null;
+			}
+			return true;
+		}
+
+		private final class EditorImpl
+			implements Editor {
+
+			private final HashMap<String, Object> changes = new HashMap<>();
+
+			@Override
+			public Editor putBoolean(String key, boolean value) {
+				changes.put(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putInt(String key, int value) {
+				changes.put(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putLong(String key, long value) {
+				changes.put(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putFloat(String key, float value) {
+				changes.put(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putDouble(String key, double value) {
+				changes.put(key, value);
+				return this;
+			}
+
+			@Override
+			public Editor putString(String key, String value) {
+				changes.put(key, value == null ? Removed : value);
+				return this;
+			}
+
+			@Override
+			public Editor remove(String key) {
+				changes.put(key, Removed);
+				return this;
+			}
+
+			@Override
+			public void commit() {
+				StorageImpl.this.commit(new HashMap<>(changes));
+				changes.clear();
+			}
+		}
+
+		private GroupQueue getPersistenceQueue() {
+			if (persistenceQueue == null)
+				synchronized (this) {
+					if (persistenceQueue == null)
+						persistenceQueue = persistenceExecutor.newGroupQueue();
+				}
+
+			return persistenceQueue;
+		}
+
+		@Override
+		public SaveMetrics getSaveMetrics() {
+			return saveScheduler.getMetrics();
+		}
+
+		private void _save() {
+			// a write nested in a larger mutation is saved once, by the writer that holds the lock
+			if (Thread.holdsLock(writeLock))
+				return;
+
+			_save((int) saveScheduler.onMutation(System.currentTimeMillis()));
+		}
+
+		/**
+		 * Schedules a save after the delay, a {@link Durability#SyncCommit} group saves right away and blocks until it completes.<br>
+		 * Must not be called under the write lock.
+		 */
+		private void _save(int delay) {
+			publishChanges();
+			// the mutations that preceded the close of the module are saved by it
+			if (closed)
+				return;
+
+			if (config.durability == Durability.SyncCommit)
+				awaitDurable();
+			else
+				getPersistenceQueue().schedule(save, delay);
+		}
+
+		@Override
+		public File getStorageFile() {
+			return storageFile;
+		}
+
+		@Override
+		public boolean isBackedBy(String fileName) {
+			return fileName.equals(storageFile.getName()) || journal != null && fileName.equals(journal.getFile().getName()) || shards != null && shards.isBackedBy(fileName);
+		}
+
+		@Override
+		public boolean isModifiedOnDisk() {
+			long lastModifiedOnDisk = getLastModifiedOnDisk();
+			synchronized (writeLock) {
+				return lastModifiedOnDisk > lastModified;
+			}
+		}
+
+		@Override
+		public void markStale() {
+			stale = true;
+			current = false;
+		}
+
+		@Override
+		public void onWatchLost() {
+			unwatched = true;
+			current = false;
+		}
+
+		/**
+		 * Reloads the group only if the change detector marked it as stale.<br>
+		 * A group that could not be watched falls back to checking its files on every access.<br>
+		 * Concurrent callers wait for a single load instead of each loading the files.
+		 */
+		final boolean isCurrent() {
+			return current;
+		}
+
+		final void reloadIfStale() {
+			if (current)
+				return;
+
+			// accesses are only tracked while groups may be evicted or unloaded, a read would otherwise pay for a clock read and a shared counter
+			boolean tracked = memoryBudget > 0 || idleGroupTimeout > 0;
+			if (tracked)
+				onAccess();
+
+			if (stale || unwatched || evicted || loading)
+				synchronized (loadLock) {
+					if (unwatched && !disposed)
+						watch();
+
+					if (stale || unwatched || evicted)
+						load();
+				}
+
+			if (tracked) {
+				enforceMemoryBudget(this);
+				return;
+			}
+
+			// published before checking, so a change racing the check either sees it set or is seen by the check
+			current = true;
+			if (stale || unwatched || evicted || loading || disposed || memoryBudget > 0 || idleGroupTimeout > 0)
+				current = false;
+		}
+
+		private void onAccess() {
+			lastAccess = System.nanoTime();
+			if (evicted)
+				cacheMetrics.onMiss();
+			else
+				cacheMetrics.onHit();
+		}
+
+		private void watch() {
+			if (mapped != null) {
+				unwatched = false;
+				return;
+			}
+
+			if (changeDetector == null || !storageFile.getParentFile().exists())
+				return;
+
+			try {
+				// mark as watched before registering, so an event racing the registration is not lost
+				unwatched = false;
+				changeDetector.register(this);
+				stale = true;
+			} catch (IOException e) {
+				unwatched = true;
+				logWarning("Unable to watch storage folder of: " + name, e);
+			}
+		}
+
+		final boolean isDisposed() {
+			return disposed;
+		}
+
+		/**
+		 * @return true if json trees are stored as is, the json codec would read their numbers back as doubles.
+		 */
+		final boolean keepsJsonTrees() {
+			return mapped != null || codec instanceof BinaryStorageCodec;
+		}
+
+		/**
+		 * Detaches the storage from the module and releases its data and the file it maps, the preference keys bound to it resolve their group again on
+		 * their next access.<br>
+		 * Writing to a disposed group is rejected, reading from it loads the group from disk again.
+		 */
+		final void dispose() {
+			disposed = true;
+			current = false;
+			if (changeDetector != null)
+				changeDetector.unregister(this);
+
+			expirySweeper.cancel(this);
+			synchronized (writeLock) {
+				clearMemory();
+				committing = null;
+				changedKeys.clear();
+				lastModified = 0;
+				setWeight(0);
+				evicted = mapped == null;
+			}
+
+			if (mapped == null)
+				return;
+
+			stale = true;
+			current = false;
+			try {
+				mapped.close();
+			} catch (IOException e) {
+				dispatchSavingError(e);
+			}
+		}
+
+		/**
+		 * Rejects further writes, waits for the pending ones to be saved and disposes the group, so nothing of it is written once it was replaced.
+		 */
+		final void retire() {
+			synchronized (writeLock) {
+				disposed = true;
+				current = false;
+			}
+
+			try {
+				flush().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException ignore) {
+				// reported to the storage listeners
+			}
+
+			getPersistenceQueue().cancelScheduled();
+			dispose();
+		}
+
+		/**
+		 * Must be called before mutating the group, under the write lock unless the group is memory mapped.
+		 */
+		private void assertWritable() {
+			if (closed)
+				throw new BadImplementationException("Storage module was closed, storage group '" + name + "' cannot be modified");
+
+			if (disposed)
+				throw new BadImplementationException("Storage group '" + name + "' was disposed, get it again from the module to modify it");
+		}
+
+		private void load() {
+			// published before the stale flag is cleared, so a reader that no longer sees the group as stale still waits for the load
+			loading = true;
+			current = false;
+			try {
+				loadFiles();
+			} finally {
+				loading = false;
+			}
+		}
+
+		private void loadFiles() {
+			stale = false;
+			if (mapped != null) {
+				if (!mapped.isOpen())
+					try {
+						openMapped();
+					} catch (IOException e) {
+						dispatchLoadingError(e);
+					}
+				return;
+			}
+
+			if (processLock != null && sharedLoaded && !processLock.isHeld())
+				try {
+					processLock.acquire(true);
+					try {
+						if (mergeSharedChanges())
+							return;
+					} finally {
+						processLock.release();
+					}
+				} catch (IOException e) {
+					dispatchLoadingError(e);
+					return;
+				}
+
+			int generation;
+			HashMap<String, Object> previous = null;
+			synchronized (writeLock) {
+				// the files were changed by shard writes that are still in progress, not by another writer
+				if (pendingShardWrites > 0)
+					return;
+
+				if (!existsOnDisk() || getLastModifiedOnDisk() <= lastModified) {
+					evicted = false;
+					return;
+				}
+
+				// an evicted group reloads the same data, there is nothing to compare it with
+				if (changeDispatcher.isObserved(name) && !evicted)
+					previous = new HashMap<>(data);
+
+				clearMemory();
+				lastModified = 0;
+				setWeight(0);
+				generation = ++loadGeneration;
+			}
+
+			boolean migrated = false;
+			boolean locked = false;
+			try {
+				// the files of a multi process group are read under a shared lock, so no other process rewrites them meanwhile
+				if (processLock != null && !processLock.isHeld()) {
+					processLock.acquire(true);
+					locked = true;
+				}
+
+				if (!storageFile.exists()) {
+					File tempFile = getTempStorageFile();
+					if (tempFile.exists()) {
+						logWarning("storage file did not exist, but could find the temp file... loading preference from temp file");
+						FileTools.renameFile(tempFile, storageFile);
+					} else if ((journal == null || !journal.exists()) && (shards == null || !shards.exists())) {
+						logInfo("No storage file to load");
+						return;
+					}
+				}
+
+				if (DebugFlag.isEnabled())
+					logInfo("Loading: " + name);
+
+				HashMap<String, Object> map = null;
+				LazyStorageIndex index = null;
+				if (storageFile.exists() && config.lazyLoading && isBinaryStorage(storageFile)) {
+					index = LazyStorageIndex.open(storageFile, (BinaryStorageCodec) codec);
+					map = new HashMap<>();
+				} else if (storageFile.exists()) {
+					ByteBuffer buffer = StorageFiles.readFully(storageFile);
+					StorageCodec codec = this.codec;
+					if (!codec.canDecode(buffer)) {
+						StorageCodec legacyCodec = codec instanceof JsonStorageCodec ? BinaryStorageCodec.Codec : new JsonStorageCodec(gson);
+						if (!legacyCodec.canDecode(buffer))
+							throw new IOException("Unknown storage format");
+
+						logInfo("Migrating storage: " + name + " to " + codec.getClass().getSimpleName());
+						codec = legacyCodec;
+						migrated = true;
+					}
+
+					map = new HashMap<>();
+					codec.decode(buffer, map);
+				}
+
+				if (shards != null) {
+					if (map != null)
+						migrateToShards(map);
+					else if (shards.read(codec, map = new HashMap<>()))
+						reshard(map);
+
+					migrated = false;
+				}
+
+				if (journal != null) {
+					if (map == null)
+						map = new HashMap<>();
+
+					int replayed = journal.replay(map, index);
+					if (DebugFlag.isEnabled() && replayed > 0)
+						logInfo("Replayed " + replayed + " journal records on: " + name);
+				}
+
+				if (processLock != null) {
+					// the local mutations that were not saved yet are newer than anything on disk
+					synchronized (writeLock) {
+						for (Record pending : pendingRecords) {
+							StorageJournal.apply(pending, map, index);
+						}
 					}
+
+					knownGeneration = processLock.getGeneration();
+					knownVersion = processLock.getVersion();
+					sharedLoaded = true;
 				}
-			} catch (final IOException e) {
-				String exception = e.getMessage() + "\n" + ExceptionTools.getStackTrace(e);
-				dispatchModuleEvent("Error loading shared preferences '" + name + "' from: " + storageFile.getAbsolutePath() + "\n" + exception, StorageListener.class, new Processor<StorageListener>() {
-					@Override
-					public void process(StorageListener listener) {
-						listener.onLoadingError(e);
+
+				if (map != null) {
+					logInfo("Loaded Storage: " + name + " from: " + storageFile);//, new WhoCalledThis("load storage"));
+					foldExpirations(map, index);
+					synchronized (writeLock) {
+						// a mutation restored the evicted group while this load was reading the files
+						if (generation != loadGeneration)
+							return;
+
+						long weight = 0;
+						for (Entry<String, Object> entry : map.entrySet()) {
+							Object value = entry.getValue();
+							weight += SizeEstimator.estimate(entry.getKey(), value);
+							putData(entry.getKey(), value);
+							if (value instanceof ExpiringValue)
+								expirySweeper.schedule(this, entry.getKey(), ((ExpiringValue) value).expiresAt);
+						}
+
+						lazyIndex = index;
+						setWeight(weight);
+						snapshotLength = storageFile.length();
+						lastModified = getLastModifiedOnDisk();
+						// re-applied local mutations of a multi process group still have to be appended
+						persistedVersion = migrated || !pendingRecords.isEmpty() && processLock != null ? -1 : mutationVersion;
+						if (migrated)
+							compactionRequested = true;
 					}
-				});
+				}
+
+				if (migrated)
+					getPersistenceQueue().schedule(save, 0);
+			} catch (IOException e) {
+				dispatchLoadingError(e);
 			} finally {
-				if (storageFileReader != null) {
-					try {
-						storageFileReader.close();
-					} catch (IOException e) {
-						logWarning("Error closing storage file reader", e);
+				if (locked)
+					processLock.release();
+
+				synchronized (writeLock) {
+					if (generation == loadGeneration) {
+						evicted = false;
+						if (previous != null)
+							collectChanges(previous);
 					}
 				}
+
+				publishChanges();
+			}
+		}
+
+		/**
+		 * Must be called under the write lock, compares the data picked up from disk with the data it replaced.
+		 */
+		private void collectChanges(HashMap<String, Object> previous) {
+			for (Entry<String, Object> entry : data.entrySet()) {
+				Object before = previous.remove(entry.getKey());
+				Object after = plainValue(entry.getValue());
+				if (before == null || !plainValue(before).equals(after))
+					changedKeys.add(entry.getKey());
+			}
+
+			// keys that are still on disk but were not materialized did not change
+			for (String key : previous.keySet()) {
+				if (lazyIndex == null || !lazyIndex.contains(key))
+					changedKeys.add(key);
+			}
+		}
+
+		/**
+		 * Replaces the persisted expiration records with {@link ExpiringValue}s wrapping the values they belong to.
+		 */
+		private void foldExpirations(HashMap<String, Object> map, LazyStorageIndex index)
+			throws IOException {
+			if (index != null)
+				for (String key : new ArrayList<>(index.keys())) {
+					if (!key.startsWith(EXPIRY_PREFIX))
+						continue;
+
+					index.materialize(key, map);
+					index.materialize(key.substring(EXPIRY_PREFIX.length()), map);
+				}
+
+			ArrayList<String> expirationKeys = new ArrayList<>();
+			for (String key : map.keySet()) {
+				if (key.startsWith(EXPIRY_PREFIX))
+					expirationKeys.add(key);
+			}
+
+			for (String expirationKey : expirationKeys) {
+				Object expiresAt = map.remove(expirationKey);
+				String key = expirationKey.substring(EXPIRY_PREFIX.length());
+				Object value = map.get(key);
+				if (value != null && expiresAt instanceof Number)
+					map.put(key, new ExpiringValue(value, ((Number) expiresAt).longValue()));
+			}
+		}
+
+		private boolean isBinaryStorage(File file)
+			throws IOException {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				ByteBuffer header = ByteBuffer.allocate(BinaryStorageCodec.HeaderSize);
+				randomAccessFile.getChannel().read(header);
+				header.flip();
+				return BinaryStorageCodec.Codec.canDecode(header);
+			} finally {
+				randomAccessFile.close();
+			}
+		}
+
+		/**
+		 * Opens the mapped file, importing a storage file written in one of the snapshot formats if one exists.
+		 */
+		private void openMapped()
+			throws IOException {
+			File tempFile = getTempStorageFile();
+			if (tempFile.exists()) {
+				// rebuilds replace the file atomically, so a temp file next to an existing one is an unfinished rebuild
+				if (storageFile.exists())
+					FileTools.delete(tempFile);
+				else {
+					logWarning("mapped storage file did not exist, but could find the temp file... opening the temp file");
+					FileTools.renameFile(tempFile, storageFile);
+				}
+			}
+
+			if (storageFile.exists()) {
+				ByteBuffer buffer = StorageFiles.readFully(storageFile);
+				if (!MappedStorageFile.isMappedFile(buffer)) {
+					StorageCodec legacyCodec = BinaryStorageCodec.Codec.canDecode(buffer) ? BinaryStorageCodec.Codec : new JsonStorageCodec(gson);
+					HashMap<String, Object> legacy = new HashMap<>();
+					legacyCodec.decode(buffer, legacy);
+
+					logInfo("Migrating storage: " + name + " to a memory mapped file");
+					File migrationFile = new File(storageFile.getParentFile(), storageFile.getName() + ".migrating");
+					FileTools.delete(migrationFile);
+
+					MappedStorageFile migrated = new MappedStorageFile(migrationFile);
+					migrated.open();
+					migrated.putAll(legacy);
+					migrated.close();
+
+					StorageFiles.replace(migrationFile, storageFile, isDurable());
+				}
+			}
+
+			mapped.open();
+			indexMappedExpirations();
+			if (DebugFlag.isEnabled())
+				logInfo("Opened mapped storage: " + name + " with " + mapped.size() + " entries");
+		}
+
+		/**
+		 * Indexes the persisted expirations of the mapped group, and schedules their sweeps.
+		 */
+		private void indexMappedExpirations()
+			throws IOException {
+			mappedExpirations.clear();
+			for (String expirationKey : mapped.keys()) {
+				if (!expirationKey.startsWith(EXPIRY_PREFIX))
+					continue;
+
+				Object expiresAt = mapped.get(expirationKey);
+				if (!(expiresAt instanceof Number))
+					continue;
+
+				String key = expirationKey.substring(EXPIRY_PREFIX.length());
+				mappedExpirations.put(key, ((Number) expiresAt).longValue());
+				expirySweeper.schedule(this, key, ((Number) expiresAt).longValue());
 			}
 		}
 	}
 
+	/**
+	 * The location and configuration of an explicitly defined group, used to reopen it after it was unloaded.
+	 */
+	private static final class GroupDefinition {
+
+		private final File file;
+		private final GroupConfig config;
+
+		private GroupDefinition(File file, GroupConfig config) {
+			this.file = file;
+			this.config = config;
+		}
+	}
+
 	public static final String DefaultStorageGroup = "DefaultStorage";
 
+	/**
+	 * The legacy expiration shadow key, holding the time the value was written at.
+	 */
 	static final String EXPIRES_POSTFIX = "-Expires";
 
+	/**
+	 * Prefixes the persisted expiration time of a key.
+	 */
+	static final String EXPIRY_PREFIX = "__expiresAt:";
+
+	/**
+	 * Marks a key removed by an {@link Editor}.
+	 */
+	private static final Object Removed = new Object();
+
+	private static final Runnable NoOp = new Runnable() {
+		@Override
+		public void run() {}
+	};
+
 	private Gson gson = new Gson();
-	private final HashMap<String, StorageImpl> storageMap = new HashMap<>();
-	private JavaHandler savingHandler;
+	private GroupConfig defaultGroupConfig = new GroupConfig();
+	private final ConcurrentHashMap<String, StorageImpl> storageMap = new ConcurrentHashMap<>();
+	private final ExpirySweeper expirySweeper = new ExpirySweeper();
+	private final CacheMetrics cacheMetrics = new CacheMetrics();
+	private final ChangeDispatcher changeDispatcher = new ChangeDispatcher() {
+		@Override
+		protected void onListenerError(StorageChangeListener listener, Throwable t) {
+			logError("Error in storage change listener: " + listener, t);
+		}
+	};
+	private volatile long memoryBudget;
+	private final AtomicLong memoryUsage = new AtomicLong();
+	private volatile long idleGroupTimeout;
+	private ScheduledFuture<?> idleUnloading;
+	private final ConcurrentHashMap<String, GroupDefinition> groupDefinitions = new ConcurrentHashMap<>();
+	private PersistenceExecutor persistenceExecutor;
+	private int persistenceThreads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+	private boolean persistOnVirtualThreads;
+	private StorageChangeDetector changeDetector;
+	private long changeDetectionInterval;
+	private long shutdownFlushTimeout;
+	private Thread shutdownHook;
+	private volatile boolean closed;
 	private File storageDefaultFolder;
 
 	private PreferencesModule() {}
@@ -326,11 +2619,280 @@ public final class PreferencesModule
 			}
 		}
 
-		savingHandler = new JavaHandler().start("shared-preferences");
+		persistenceExecutor = new PersistenceExecutor(persistenceThreads, persistOnVirtualThreads);
+		if (persistOnVirtualThreads && !persistenceExecutor.isVirtual())
+			logWarning("Virtual threads are not supported by this JVM, persisting on a pool of " + persistenceThreads + " threads");
+		expirySweeper.start();
+		scheduleIdleUnloading();
+
+		try {
+			changeDetector = new StorageChangeDetector(changeDetectionInterval);
+			changeDetector.start();
+		} catch (IOException e) {
+			logWarning("Unable to start storage change detector, falling back to checking the storage files on every access", e);
+		}
+
+		if (shutdownFlushTimeout > 0) {
+			shutdownHook = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					close(shutdownFlushTimeout);
+				}
+			}, "storage-shutdown-flush");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+	}
+
+	/**
+	 * Flushes all the open storage groups in parallel, and stops the threads of the module once they were written or the timeout elapsed.<br>
+	 * Saves that are still running when the timeout elapses are not interrupted, they complete on the persistence threads, so the files are never left half written.<br>
+	 * The module cannot be used once it is closed, modifying a storage group is rejected before it changes the data of the group.
+	 *
+	 * @param timeout The time in ms to wait for all the groups together.
+	 *
+	 * @return the names of the groups that failed to save or were not saved within the timeout, empty if all of them were.
+	 */
+	public final List<String> close(long timeout) {
+		synchronized (this) {
+			if (closed)
+				return Collections.emptyList();
+
+			closed = true;
+		}
+
+		if (shutdownHook != null && Thread.currentThread() != shutdownHook)
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ignore) {
+				// the JVM is already shutting down
+			}
+
+		expirySweeper.stop();
+		if (changeDetector != null)
+			try {
+				changeDetector.stop();
+			} catch (IOException e) {
+				logWarning("Error stopping storage change detector", e);
+			}
+
+		HashMap<StorageImpl, CompletableFuture<Void>> flushed = new HashMap<>();
+		for (StorageImpl storage : storageMap.values()) {
+			flushed.put(storage, storage.flush());
+		}
+
+		try {
+			CompletableFuture.allOf(flushed.values().toArray(new CompletableFuture<?>[flushed.size()])).get(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException | TimeoutException ignore) {
+			// the groups that were not flushed are reported below
+		}
+
+		ArrayList<String> unflushed = new ArrayList<>();
+		for (Entry<StorageImpl, CompletableFuture<Void>> entry : flushed.entrySet()) {
+			StorageImpl storage = entry.getKey();
+			CompletableFuture<Void> future = entry.getValue();
+			if (!future.isDone() || future.isCompletedExceptionally()) {
+				unflushed.add(storage.name);
+				continue;
+			}
+
+			storage.dispose();
+		}
+
+		// the groups that were not flushed keep saving, the thread of the save in flight runs the rest of their queue once the workers are shut down
+		storageMap.clear();
+		changeDispatcher.shutdown();
+		persistenceExecutor.shutdown();
+		if (!unflushed.isEmpty())
+			logWarning("Storage groups were not flushed on close: " + unflushed);
+
+		return unflushed;
+	}
+
+	/**
+	 * @param shutdownFlushTimeout The time in ms a JVM shutdown hook waits for the storage groups to be flushed, see {@link #close(long)}, or 0 (default) for no shutdown hook.
+	 */
+	public final void setShutdownFlushTimeout(long shutdownFlushTimeout) {
+		this.shutdownFlushTimeout = shutdownFlushTimeout;
+	}
+
+	/**
+	 * @param persistenceThreads The max number of storage groups to save in parallel, the saves of each group are always sequential.
+	 */
+	public final void setPersistenceThreads(int persistenceThreads) {
+		this.persistenceThreads = persistenceThreads;
+	}
+
+	/**
+	 * @param persistOnVirtualThreads Whether to run the saves on virtual threads, when the JVM supports them.
+	 */
+	public final void setPersistOnVirtualThreads(boolean persistOnVirtualThreads) {
+		this.persistOnVirtualThreads = persistOnVirtualThreads;
+	}
+
+	/**
+	 * @param changeDetectionInterval The interval in ms at which to poll storage files for external changes, or 0 (default) to use a file system watch service.
+	 */
+	public final void setChangeDetectionInterval(long changeDetectionInterval) {
+		this.changeDetectionInterval = changeDetectionInterval;
+	}
+
+	/**
+	 * @param memoryBudget The estimated heap size in bytes the data of all the storage groups may retain, or 0 (default) for no limit.<br>
+	 *                     Once exceeded, the least recently accessed groups without unsaved changes are dropped from memory and loaded again on demand.
+	 */
+	public final void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+		invalidateGroups();
+	}
+
+	/**
+	 * @param idleGroupTimeout The time in ms after which a group that was not accessed is flushed and released from memory, or 0 (default) to keep groups loaded.<br>
+	 *                         An unloaded group is reopened transparently on its next access.
+	 */
+	public final void setIdleGroupTimeout(long idleGroupTimeout) {
+		this.idleGroupTimeout = idleGroupTimeout;
+		invalidateGroups();
+		scheduleIdleUnloading();
+	}
+
+	/**
+	 * Replaces the periodic check for idle groups with one matching the current timeout, or cancels it when the timeout is disabled.
+	 */
+	private synchronized void scheduleIdleUnloading() {
+		if (idleUnloading != null)
+			idleUnloading.cancel(false);
+
+		idleUnloading = null;
+		if (idleGroupTimeout <= 0 || persistenceExecutor == null || closed)
+			return;
+
+		idleUnloading = persistenceExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				unloadIdleGroups();
+			}
+		}, Math.max(1000, idleGroupTimeout / 2));
+	}
+
+	/**
+	 * Makes the next read of every group check again whether its accesses are tracked.
+	 */
+	private void invalidateGroups() {
+		for (StorageImpl storage : storageMap.values()) {
+			storage.current = false;
+		}
+	}
+
+	/**
+	 * @param changeDispatchWindow The time in ms during which changes are coalesced before the change listeners are notified, defaults to 50ms.
+	 */
+	public final void setChangeDispatchWindow(long changeDispatchWindow) {
+		changeDispatcher.setWindow(changeDispatchWindow);
+	}
+
+	/**
+	 * Registers a listener to changes of any key in the group, including changes another writer made on disk.
+	 */
+	public final void addChangeListener(String storageGroup, StorageChangeListener listener) {
+		changeDispatcher.subscribe(storageGroup, null, listener);
+	}
+
+	public final void removeChangeListener(String storageGroup, StorageChangeListener listener) {
+		changeDispatcher.unsubscribe(storageGroup, null, listener);
+	}
+
+	/**
+	 * Registers a listener to changes of a single key in the group, including changes another writer made on disk.
+	 */
+	public final void addChangeListener(String storageGroup, String key, StorageChangeListener listener) {
+		changeDispatcher.subscribe(storageGroup, key, listener);
+	}
+
+	public final void removeChangeListener(String storageGroup, String key, StorageChangeListener listener) {
+		changeDispatcher.unsubscribe(storageGroup, key, listener);
+	}
+
+	private void unloadIdleGroups() {
+		long now = System.nanoTime();
+		for (StorageImpl storage : storageMap.values()) {
+			if (storage.isIdle(now))
+				storage.scheduleUnload();
+		}
+	}
+
+	public final CacheMetrics getCacheMetrics() {
+		return cacheMetrics;
+	}
+
+	/**
+	 * @return The estimated heap size retained by the data of all the storage groups.
+	 */
+	public final long getEstimatedMemoryUsage() {
+		return memoryUsage.get();
+	}
+
+	/**
+	 * Evicts the least recently accessed clean groups until the estimated memory usage fits the budget.<br>
+	 * The groups are only scanned once the running total of their weights exceeds the budget.
+	 *
+	 * @param accessed The group that triggered the check, it is never evicted by it.
+	 */
+	private void enforceMemoryBudget(StorageImpl accessed) {
+		long memoryBudget = this.memoryBudget;
+		if (memoryBudget <= 0 || memoryUsage.get() <= memoryBudget)
+			return;
+
+		long usage = 0;
+		ArrayList<StorageImpl> candidates = new ArrayList<>();
+		final HashMap<StorageImpl, Long> accessTimes = new HashMap<>();
+		for (StorageImpl storage : storageMap.values()) {
+			usage += storage.weight;
+			if (storage == accessed || !storage.isEvictable())
+				continue;
+
+			candidates.add(storage);
+			accessTimes.put(storage, storage.lastAccess);
+		}
+
+		if (usage <= memoryBudget)
+			return;
+
+		Collections.sort(candidates, new Comparator<StorageImpl>() {
+			@Override
+			public int compare(StorageImpl o1, StorageImpl o2) {
+				return Long.compare(accessTimes.get(o1), accessTimes.get(o2));
+			}
+		});
+
+		for (StorageImpl storage : candidates) {
+			if (usage <= memoryBudget)
+				break;
+
+			usage -= storage.weight;
+			storage.scheduleEviction();
+		}
 	}
 
 	public final void defineGroup(String name, File pathToFile) {
-		createStorageGroupImpl(name, pathToFile);
+		defineGroup(name, pathToFile, defaultGroupConfig);
+	}
+
+	public final void defineGroup(String name, GroupConfig config) {
+		defineGroup(name, new File(storageDefaultFolder, name), config);
+	}
+
+	public final void defineGroup(String name, File pathToFile, GroupConfig config) {
+		groupDefinitions.put(name, new GroupDefinition(pathToFile, config));
+		createStorageGroupImpl(name, pathToFile, config);
+	}
+
+	/**
+	 * @param defaultGroupConfig The configuration to use for groups that were not explicitly defined.
+	 */
+	public final void setDefaultGroupConfig(GroupConfig defaultGroupConfig) {
+		this.defaultGroupConfig = defaultGroupConfig;
 	}
 
 	public final void setStorageFolder(String storageFolder) {
@@ -346,38 +2908,107 @@ public final class PreferencesModule
 	}
 
 	public void clear() {
-		synchronized (storageMap) {
-			for (StorageImpl storage : storageMap.values()) {
-				storage.clear();
-			}
+		for (StorageImpl storage : storageMap.values()) {
+			storage.clear();
 		}
 	}
 
+	/**
+	 * @return the number of expiration sweeps that are queued, across all the groups.
+	 */
+	final int getPendingExpirations() {
+		return expirySweeper.getPendingCount();
+	}
+
 	public void clearMemCache() {
-		synchronized (storageMap) {
-			for (StorageImpl storage : storageMap.values()) {
-				storage.clearMemCache();
-			}
+		for (StorageImpl storage : storageMap.values()) {
+			storage.clearMemCache();
 		}
 	}
 
-	private StorageImpl createStorageGroupImpl(String name, File pathToFile) {
+	private static Object plainValue(Object value) {
+		if (value instanceof ExpiringValue)
+			value = ((ExpiringValue) value).value;
+
+		if (value instanceof PrimitiveSlot)
+			value = ((PrimitiveSlot) value).box();
+
+		return value;
+	}
+
+	private StorageImpl newStorageGroupImpl(String name, File pathToFile, GroupConfig config) {
 		if (pathToFile.getParentFile() == null)
 			throw new BadImplementationException("Path to storage file MUST contain a parent folder!!");
 
-		StorageImpl prefs = new StorageImpl(name).setStorageFile(pathToFile);
-		prefs.load();
-		storageMap.put(name, prefs);
+		return new StorageImpl(name, config).setStorageFile(pathToFile);
+	}
+
+	private StorageImpl createStorageGroupImpl(String name, File pathToFile, GroupConfig config) {
+		assertOpen();
+		// the previous definition must be saved and release its files before the new one opens them
+		StorageImpl retired = storageMap.get(name);
+		if (retired != null)
+			retired.retire();
+
+		StorageImpl prefs = newStorageGroupImpl(name, pathToFile, config);
+		prefs.reloadIfStale();
+		StorageImpl previous = storageMap.put(name, prefs);
+		if (previous != null && previous != retired)
+			previous.retire();
+
 		return prefs;
 	}
 
 	public final Storage getStorage(String storageGroup) {
+		StorageImpl preferences = resolveStorage(storageGroup);
+		preferences.reloadIfStale();
+		return preferences;
+	}
+
+	/**
+	 * Opens the storage group on the persistence threads, so the calling thread never waits for it to load.
+	 */
+	public final CompletableFuture<Storage> getStorageAsync(String storageGroup) {
+		final StorageImpl storage = resolveStorage(storageGroup);
+		return CompletableFuture.supplyAsync(new Supplier<Storage>() {
+			@Override
+			public Storage get() {
+				storage.reloadIfStale();
+				return storage;
+			}
+		}, persistenceExecutor);
+	}
+
+	/**
+	 * Saves the mutations made so far to all the open storage groups, see {@link Storage#flush()}.
+	 */
+	public final CompletableFuture<Void> flush() {
+		ArrayList<CompletableFuture<Void>> flushed = new ArrayList<>();
+		for (StorageImpl storage : storageMap.values()) {
+			flushed.add(storage.flush());
+		}
+
+		return CompletableFuture.allOf(flushed.toArray(new CompletableFuture<?>[flushed.size()]));
+	}
+
+	private void assertOpen() {
+		if (closed)
+			throw new BadImplementationException("Storage module was closed");
+	}
+
+	private StorageImpl resolveStorage(String storageGroup) {
 		StorageImpl preferences = storageMap.get(storageGroup);
 		if (preferences == null) {
-			File pathToFile = new File(storageDefaultFolder, storageGroup);
-			storageMap.put(storageGroup, preferences = createStorageGroupImpl(storageGroup, pathToFile));
-		} else
-			preferences.load();
+			assertOpen();
+
+			// creating a storage has no side effects, the one that loses the race is simply dropped
+			GroupDefinition definition = groupDefinitions.get(storageGroup);
+			StorageImpl created = definition != null ? newStorageGroupImpl(storageGroup, definition.file, definition.config)
+			                                         : newStorageGroupImpl(storageGroup, new File(storageDefaultFolder, storageGroup), defaultGroupConfig);
+			preferences = storageMap.putIfAbsent(storageGroup, created);
+			if (preferences == null)
+				preferences = created;
+		}
 
 		return preferences;
 	}
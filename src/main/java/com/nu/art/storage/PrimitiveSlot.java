@@ -0,0 +1,220 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+/**
+ * A mutable holder of a primitive value, kept in the storage map so that primitive reads and in place writes do not box.<br>
+ * Slots never leave the storage engine, they are boxed when the data is snapshot for saving.
+ */
+interface PrimitiveSlot {
+
+	Object box();
+
+	final class IntSlot
+		extends Number
+		implements PrimitiveSlot {
+
+		private static final long serialVersionUID = 1L;
+
+		volatile int value;
+
+		IntSlot(int value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object box() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+
+		@Override
+		public int intValue() {
+			return value;
+		}
+
+		@Override
+		public long longValue() {
+			return value;
+		}
+
+		@Override
+		public float floatValue() {
+			return value;
+		}
+
+		@Override
+		public double doubleValue() {
+			return value;
+		}
+	}
+
+	final class LongSlot
+		extends Number
+		implements PrimitiveSlot {
+
+		private static final long serialVersionUID = 1L;
+
+		volatile long value;
+
+		LongSlot(long value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object box() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+
+		@Override
+		public int intValue() {
+			return (int) value;
+		}
+
+		@Override
+		public long longValue() {
+			return value;
+		}
+
+		@Override
+		public float floatValue() {
+			return value;
+		}
+
+		@Override
+		public double doubleValue() {
+			return value;
+		}
+	}
+
+	final class FloatSlot
+		extends Number
+		implements PrimitiveSlot {
+
+		private static final long serialVersionUID = 1L;
+
+		volatile float value;
+
+		FloatSlot(float value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object box() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+
+		@Override
+		public int intValue() {
+			return (int) value;
+		}
+
+		@Override
+		public long longValue() {
+			return (long) value;
+		}
+
+		@Override
+		public float floatValue() {
+			return value;
+		}
+
+		@Override
+		public double doubleValue() {
+			return value;
+		}
+	}
+
+	final class DoubleSlot
+		extends Number
+		implements PrimitiveSlot {
+
+		private static final long serialVersionUID = 1L;
+
+		volatile double value;
+
+		DoubleSlot(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object box() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+
+		@Override
+		public int intValue() {
+			return (int) value;
+		}
+
+		@Override
+		public long longValue() {
+			return (long) value;
+		}
+
+		@Override
+		public float floatValue() {
+			return (float) value;
+		}
+
+		@Override
+		public double doubleValue() {
+			return value;
+		}
+	}
+
+	final class BooleanSlot
+		implements PrimitiveSlot {
+
+		volatile boolean value;
+
+		BooleanSlot(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		public Object box() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(value);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+/**
+ * Counters describing how well the saves of a storage group coalesce its mutations.
+ */
+public final class SaveMetrics {
+
+	private long flushCount;
+	private long skippedFlushCount;
+	private long coalescedMutations;
+	private int lastCoalesced;
+	private int maxCoalesced;
+
+	SaveMetrics() {}
+
+	final synchronized void onFlush(int mutations) {
+		flushCount++;
+		coalescedMutations += mutations;
+		lastCoalesced = mutations;
+		maxCoalesced = Math.max(maxCoalesced, mutations);
+	}
+
+	final synchronized void onSkippedFlush() {
+		skippedFlushCount++;
+	}
+
+	public final synchronized long getFlushCount() {
+		return flushCount;
+	}
+
+	/**
+	 * @return The number of scheduled flushes that were skipped, because nothing changed since the last persisted version.
+	 */
+	public final synchronized long getSkippedFlushCount() {
+		return skippedFlushCount;
+	}
+
+	/**
+	 * @return The total number of mutations written by all the flushes.
+	 */
+	public final synchronized long getCoalescedMutations() {
+		return coalescedMutations;
+	}
+
+	public final synchronized int getLastCoalesced() {
+		return lastCoalesced;
+	}
+
+	public final synchronized int getMaxCoalesced() {
+		return maxCoalesced;
+	}
+
+	public final synchronized float getAverageCoalesced() {
+		return flushCount == 0 ? 0 : (float) coalescedMutations / flushCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "SaveMetrics{flushes=" + flushCount + ", skipped=" + skippedFlushCount + ", mutations=" + coalescedMutations + ", last=" + lastCoalesced + ", max=" + maxCoalesced + "}";
+	}
+}
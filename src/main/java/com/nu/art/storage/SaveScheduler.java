@@ -0,0 +1,92 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+/**
+ * Decides when the pending mutations of a group should be flushed.<br>
+ * Each mutation pushes the flush back by a debounce window that adapts to the observed write rate, but never past
+ * the max latency measured from the first mutation that is not yet flushed, so continuous writes cannot starve the save.
+ */
+final class SaveScheduler {
+
+	private static final float RateSmoothing = 0.2f;
+
+	private final long minDebounce;
+	private final long maxLatency;
+	private final SaveMetrics metrics = new SaveMetrics();
+
+	private long firstDirtyAt;
+	private long lastMutationAt;
+	private float averageInterval;
+	private int pendingMutations;
+
+	SaveScheduler(long minDebounce, long maxLatency) {
+		this.minDebounce = minDebounce;
+		this.maxLatency = Math.max(minDebounce, maxLatency);
+	}
+
+	final SaveMetrics getMetrics() {
+		return metrics;
+	}
+
+	final long onMutation(long now) {
+		return onMutation(now, 1);
+	}
+
+	/**
+	 * @return the delay in ms after which the group should be flushed.
+	 */
+	final synchronized long onMutation(long now, int mutations) {
+		if (lastMutationAt > 0) {
+			long interval = now - lastMutationAt;
+			averageInterval = averageInterval == 0 ? interval : averageInterval + (interval - averageInterval) * RateSmoothing;
+		}
+
+		lastMutationAt = now;
+		pendingMutations += mutations;
+		if (firstDirtyAt == 0)
+			firstDirtyAt = now;
+
+		long debounce = minDebounce;
+		// a burst of writes waits for a couple of intervals, to coalesce the writes that are likely to follow
+		if (averageInterval * 2 < maxLatency)
+			debounce = Math.max(minDebounce, (long) (averageInterval * 2));
+
+		long untilDeadline = firstDirtyAt + maxLatency - now;
+		return Math.max(0, Math.min(debounce, untilDeadline));
+	}
+
+	/**
+	 * Called when a flush starts, all the mutations that preceded it are covered by it.
+	 */
+	final synchronized void onFlush() {
+		metrics.onFlush(pendingMutations);
+		pendingMutations = 0;
+		firstDirtyAt = 0;
+	}
+
+	/**
+	 * Called instead of {@link #onFlush()} when the mutations left nothing to persist.
+	 */
+	final synchronized void onSkippedFlush() {
+		metrics.onSkippedFlush();
+		pendingMutations = 0;
+		firstDirtyAt = 0;
+	}
+}
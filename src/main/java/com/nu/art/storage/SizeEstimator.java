@@ -0,0 +1,97 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nu.art.storage;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.nu.art.storage.ExpirySweeper.ExpiringValue;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A rough estimate of the heap retained by the values of a storage group, used to weigh groups against the memory budget.<br>
+ * The numbers assume a 64 bit JVM with compressed references, it only needs to be right relative to other groups.
+ */
+final class SizeEstimator {
+
+	private static final int EntryOverhead = 48;
+	private static final int ObjectOverhead = 16;
+	private static final int StringOverhead = 40;
+	private static final int BoxedSize = 24;
+
+	private SizeEstimator() {}
+
+	static long estimate(String key, Object value) {
+		return EntryOverhead + estimate(key) + estimate(value);
+	}
+
+	static long estimate(Object value) {
+		if (value == null)
+			return 0;
+
+		if (value instanceof String)
+			return StringOverhead + 2L * ((String) value).length();
+
+		if (value instanceof byte[])
+			return ObjectOverhead + ((byte[]) value).length;
+
+		if (value instanceof ExpiringValue)
+			return BoxedSize + estimate(((ExpiringValue) value).value);
+
+		if (value instanceof Map) {
+			long size = ObjectOverhead;
+			for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += EntryOverhead + estimate(entry.getKey()) + estimate(entry.getValue());
+			}
+			return size;
+		}
+
+		if (value instanceof JsonObject) {
+			long size = ObjectOverhead;
+			for (Entry<String, JsonElement> entry : ((JsonObject) value).entrySet()) {
+				size += EntryOverhead + estimate(entry.getKey()) + estimate(entry.getValue());
+			}
+			return size;
+		}
+
+		if (value instanceof JsonArray) {
+			long size = ObjectOverhead;
+			for (JsonElement item : (JsonArray) value) {
+				size += 8 + estimate(item);
+			}
+			return size;
+		}
+
+		if (value instanceof JsonPrimitive && ((JsonPrimitive) value).isString())
+			return BoxedSize + estimate(((JsonPrimitive) value).getAsString());
+
+		if (value instanceof Collection) {
+			long size = ObjectOverhead;
+			for (Object item : (Collection<?>) value) {
+				size += 8 + estimate(item);
+			}
+			return size;
+		}
+
+		return BoxedSize;
+	}
+}
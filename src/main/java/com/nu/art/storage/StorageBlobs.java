@@ -0,0 +1,267 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.core.file.Charsets;
+import com.nu.art.core.tools.FileTools;
+import com.nu.art.storage.ExpirySweeper.ExpiringValue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the values of a storage group above the spill threshold in side files named by the hash of their content.
+ * <pre>
+ * blob: &lt;storage file&gt;.blobs/&lt;sha-256 of the content&gt;
+ * </pre>
+ * The group only holds a reference to the blob, so saving the group does not rewrite the large values, and loading it does not parse them.<br>
+ * A blob is written, outside the write lock of the group, before the value referencing it is published, and deleted by the first save that no longer references it.<br>
+ * Resolved values are softly cached by their reference, the content of a blob never changes, so the cache is never stale.
+ */
+final class StorageBlobs {
+
+	static final String FOLDER_POSTFIX = ".blobs";
+
+	/**
+	 * Followed by the kind of the value and the hash of its content.
+	 */
+	private static final String ReferencePrefix = "\u0000blob:";
+	private static final char Kind_String = 's';
+	private static final char Kind_Bytes = 'b';
+	private static final char Kind_Json = 'j';
+	private static final char[] HexDigits = "0123456789abcdef".toCharArray();
+
+	private final Gson gson = new Gson();
+	private final File folder;
+	private final int threshold;
+
+	/**
+	 * The blobs referenced since the last garbage collection, which the references it collected could not include.
+	 */
+	private final HashSet<String> recent = new HashSet<>();
+
+	/**
+	 * The blobs that were spilled but whose references were not published yet, with the number of writers of each.
+	 */
+	private final HashMap<String, Integer> unpublished = new HashMap<>();
+
+	private final ConcurrentHashMap<String, SoftReference<Object>> resolved = new ConcurrentHashMap<>();
+
+	StorageBlobs(File storageFile, int threshold) {
+		this.folder = new File(storageFile.getParentFile(), storageFile.getName() + FOLDER_POSTFIX);
+		this.threshold = threshold;
+	}
+
+	static boolean isReference(Object value) {
+		return value instanceof String && ((String) value).startsWith(ReferencePrefix);
+	}
+
+	/**
+	 * Adds the hash of the blob the value refers to, if it is a reference.
+	 */
+	static void collectReference(Object value, Set<String> into) {
+		if (value instanceof ExpiringValue)
+			value = ((ExpiringValue) value).value;
+
+		if (isReference(value))
+			into.add(getHash((String) value));
+	}
+
+	/**
+	 * Writes the value to its blob, unless a blob with the same content already exists.<br>
+	 * The blob is protected from garbage collection until the returned reference is {@link #release(Object) released}.
+	 *
+	 * @return a reference to the blob to store instead of the value, or the value itself if it is below the threshold.
+	 */
+	final Object spill(Object value, boolean durable)
+		throws IOException {
+		char kind;
+		byte[] bytes;
+		if (value instanceof String) {
+			// a character is encoded into 3 utf8 bytes at most
+			if (((String) value).length() * 3 < threshold || isReference(value))
+				return value;
+
+			kind = Kind_String;
+			bytes = ((String) value).getBytes(Charsets.UTF_8);
+		} else if (value instanceof byte[]) {
+			kind = Kind_Bytes;
+			bytes = (byte[]) value;
+		} else if (value instanceof JsonElement) {
+			kind = Kind_Json;
+			bytes = value.toString().getBytes(Charsets.UTF_8);
+		} else
+			return value;
+
+		if (bytes.length < threshold)
+			return value;
+
+		String hash = hash(bytes);
+		synchronized (this) {
+			Integer writers = unpublished.get(hash);
+			unpublished.put(hash, writers == null ? 1 : writers + 1);
+		}
+
+		String reference = ReferencePrefix + kind + hash;
+		try {
+			File blob = new File(folder, hash);
+			if (!blob.exists()) {
+				if (!folder.exists())
+					FileTools.mkDir(folder);
+
+				// concurrent writers of the same content each write their own temp file
+				File tempFile = new File(folder, hash + "." + Thread.currentThread().getId() + ".tmp");
+				StorageFiles.write(ByteBuffer.wrap(bytes), tempFile, durable);
+				StorageFiles.replace(tempFile, blob, durable);
+			}
+		} catch (IOException e) {
+			release(reference);
+			throw e;
+		}
+
+		return reference;
+	}
+
+	/**
+	 * Must be called once the reference returned by {@link #spill(Object, boolean)} was published, or dropped.
+	 */
+	final synchronized void release(Object reference) {
+		if (!isReference(reference))
+			return;
+
+		String hash = getHash((String) reference);
+		Integer writers = unpublished.remove(hash);
+		if (writers != null && writers > 1)
+			unpublished.put(hash, writers - 1);
+
+		// the references collected by a save in progress may not include it
+		recent.add(hash);
+	}
+
+	/**
+	 * @return the value the reference was created for.
+	 */
+	final Object resolve(String reference)
+		throws IOException {
+		SoftReference<Object> cached = resolved.get(reference);
+		Object value = cached != null ? cached.get() : null;
+		if (value == null) {
+			value = decode(reference, read(reference));
+			resolved.put(reference, new SoftReference<>(value));
+		}
+
+		return value;
+	}
+
+	private Object decode(String reference, ByteBuffer buffer)
+		throws IOException {
+		char kind = reference.charAt(ReferencePrefix.length());
+		switch (kind) {
+			case Kind_Bytes:
+				return buffer.array();
+
+			case Kind_String:
+				return new String(buffer.array(), Charsets.UTF_8);
+
+			case Kind_Json:
+				return gson.fromJson(new String(buffer.array(), Charsets.UTF_8), JsonElement.class);
+
+			default:
+				throw new IOException("Unknown blob kind: " + kind);
+		}
+	}
+
+	final ByteBuffer read(String reference)
+		throws IOException {
+		return StorageFiles.readFully(getBlob(reference));
+	}
+
+	final InputStream open(String reference)
+		throws IOException {
+		return new FileInputStream(getBlob(reference));
+	}
+
+	/**
+	 * Deletes the blobs that are neither referenced nor were referenced since the references were collected.<br>
+	 * Must only be called once a group file without the references of the deleted blobs was written.
+	 */
+	final synchronized void retainOnly(Set<String> referenced) {
+		File[] blobs = folder.listFiles();
+		if (blobs != null)
+			for (File blob : blobs) {
+				String name = blob.getName();
+				int extension = name.indexOf('.');
+				String hash = extension == -1 ? name : name.substring(0, extension);
+				if (referenced.contains(hash) || recent.contains(hash) || unpublished.containsKey(hash))
+					continue;
+
+				// a blob that could not be deleted is retried by the next save
+				//noinspection ResultOfMethodCallIgnored
+				blob.delete();
+			}
+
+		recent.clear();
+		for (String reference : resolved.keySet()) {
+			if (!referenced.contains(getHash(reference)))
+				resolved.remove(reference);
+		}
+	}
+
+	final void clearCache() {
+		resolved.clear();
+	}
+
+	private File getBlob(String reference) {
+		return new File(folder, getHash(reference));
+	}
+
+	private static String getHash(String reference) {
+		return reference.substring(ReferencePrefix.length() + 1);
+	}
+
+	private static String hash(byte[] bytes) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new BadImplementationException("SHA-256 is not supported by this JVM");
+		}
+
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HexDigits[(digest[i] >> 4) & 0x0f];
+			hex[i * 2 + 1] = HexDigits[digest[i] & 0x0f];
+		}
+
+		return new String(hex);
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Detects external changes to storage files in the background, and marks their groups as stale, so that the read path never needs to touch the file system.<br>
+ * Uses a {@link WatchService} on the storage folders, or polls the files at a fixed interval when one is configured.
+ */
+final class StorageChangeDetector
+	implements Runnable {
+
+	interface WatchedStorage {
+
+		File getStorageFile();
+
+		/**
+		 * @return true if the given file name, in the storage folder, is one of the files backing this storage.
+		 */
+		boolean isBackedBy(String fileName);
+
+		/**
+		 * @return true if the files backing this storage changed since they were last loaded or saved.
+		 */
+		boolean isModifiedOnDisk();
+
+		void markStale();
+
+		/**
+		 * Called when the storage folder can no longer be watched, e.g. it was deleted.
+		 */
+		void onWatchLost();
+	}
+
+	private final HashMap<Path, List<WatchedStorage>> watched = new HashMap<>();
+	private final WatchService watchService;
+	private final long pollingInterval;
+	private volatile boolean running;
+	private Thread thread;
+
+	/**
+	 * @param pollingInterval The interval in ms to poll the storage files at, or 0 to use a {@link WatchService}.
+	 */
+	StorageChangeDetector(long pollingInterval)
+		throws IOException {
+		this.pollingInterval = pollingInterval;
+		this.watchService = pollingInterval > 0 ? null : FileSystems.getDefault().newWatchService();
+	}
+
+	final void start() {
+		running = true;
+		thread = new Thread(this, "storage-change-detector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	final void stop()
+		throws IOException {
+		running = false;
+		if (watchService != null)
+			watchService.close();
+
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	final void register(WatchedStorage storage)
+		throws IOException {
+		Path folder = storage.getStorageFile().getAbsoluteFile().getParentFile().toPath();
+		synchronized (watched) {
+			List<WatchedStorage> storages = watched.get(folder);
+			if (storages == null) {
+				if (watchService != null)
+					folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+				watched.put(folder, storages = new ArrayList<>());
+			}
+
+			storages.add(storage);
+		}
+	}
+
+	final void unregister(WatchedStorage storage) {
+		Path folder = storage.getStorageFile().getAbsoluteFile().getParentFile().toPath();
+		synchronized (watched) {
+			List<WatchedStorage> storages = watched.get(folder);
+			if (storages != null)
+				storages.remove(storage);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				if (watchService == null)
+					poll();
+				else
+					processEvents(watchService.take());
+			}
+		} catch (InterruptedException | ClosedWatchServiceException ignore) {
+			// stopped
+		}
+	}
+
+	private void poll()
+		throws InterruptedException {
+		Thread.sleep(pollingInterval);
+		synchronized (watched) {
+			for (List<WatchedStorage> storages : watched.values()) {
+				for (WatchedStorage storage : storages) {
+					if (storage.isModifiedOnDisk())
+						storage.markStale();
+				}
+			}
+		}
+	}
+
+	private void processEvents(WatchKey key) {
+		Path folder = (Path) key.watchable();
+		synchronized (watched) {
+			List<WatchedStorage> storages = watched.get(folder);
+			if (storages != null)
+				for (WatchEvent<?> event : key.pollEvents()) {
+					Object context = event.context();
+					for (WatchedStorage storage : storages) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW || context != null && storage.isBackedBy(context.toString()))
+							storage.markStale();
+					}
+				}
+		}
+
+		if (key.reset())
+			return;
+
+		synchronized (watched) {
+			List<WatchedStorage> storages = watched.remove(folder);
+			if (storages != null)
+				for (WatchedStorage storage : storages) {
+					storage.onWatchLost();
+				}
+		}
+	}
+}
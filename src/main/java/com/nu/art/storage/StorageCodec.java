@@ -0,0 +1,46 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Converts the content of a storage group to and from its on disk representation.
+ */
+public interface StorageCodec {
+
+	/**
+	 * @return true if the content of the buffer looks like it was encoded by this codec.
+	 */
+	boolean canDecode(ByteBuffer buffer);
+
+	/**
+	 * @return a buffer ready to be read, holding the encoded data.
+	 */
+	ByteBuffer encode(Map<String, Object> data)
+		throws IOException;
+
+	/**
+	 * Decodes the remaining content of the buffer into the given map.
+	 */
+	void decode(ByteBuffer buffer, Map<String, Object> into)
+		throws IOException;
+}
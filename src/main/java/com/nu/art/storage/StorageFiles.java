@@ -0,0 +1,128 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.nu.art.core.tools.FileTools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+final class StorageFiles {
+
+	private StorageFiles() {}
+
+	static ByteBuffer readFully(File file)
+		throws IOException {
+		FileInputStream inputStream = new FileInputStream(file);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1)
+					break;
+			}
+
+			buffer.flip();
+			return buffer;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	static void write(ByteBuffer buffer, File file)
+		throws IOException {
+		write(buffer, file, false);
+	}
+
+	/**
+	 * @param sync Whether to return only once the content of the file reached the storage device.
+	 */
+	static void write(ByteBuffer buffer, File file, boolean sync)
+		throws IOException {
+		// the storage folder may have been deleted while the module was running
+		File folder = file.getParentFile();
+		if (folder != null && !folder.exists())
+			FileTools.mkDir(folder);
+
+		FileOutputStream outputStream = new FileOutputStream(file);
+		try {
+			FileChannel channel = outputStream.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			if (sync)
+				channel.force(true);
+		} finally {
+			outputStream.close();
+		}
+	}
+
+	/**
+	 * Replaces the target file with the temp file.<br>
+	 * A durable replace is an atomic rename followed by a sync of the folder, so the target never goes missing and the rename survives a crash.
+	 * Otherwise the target is deleted before the rename, and a crash in between leaves only the temp file.
+	 */
+	static void replace(File tempFile, File target, boolean durable)
+		throws IOException {
+		if (!durable) {
+			FileTools.delete(target);
+			FileTools.renameFile(tempFile, target);
+			return;
+		}
+
+		try {
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		syncFolder(target.getParentFile());
+	}
+
+	/**
+	 * Makes the entries of the folder (created, renamed or deleted files) durable, where the platform allows opening a folder for it.
+	 */
+	static void syncFolder(File folder) {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// not supported on some platforms, where the rename is durable on its own
+			return;
+		}
+
+		try {
+			channel.force(true);
+		} catch (IOException ignore) {
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException ignore) {}
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.nu.art.storage;
+
+import com.nu.art.core.file.Charsets;
+import com.nu.art.core.tools.FileTools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append only log of mutations applied to a storage group since its last full snapshot.<br>
+ * Every record is framed with its length, so a torn write at the end of the file (crash mid append) only loses the last record.
+ * <pre>
+ * record: length(4) op(1) payload
+ * </pre>
+ * A put payload is the single entry encoded with the group codec, a remove payload is the utf8 key, and a clear has no payload.
+ */
+final class StorageJournal {
+
+	static final String JOURNAL_POSTFIX = ".journal";
+
+	private static final byte Op_Put = 0;
+	private static final byte Op_Remove = 1;
+	private static final byte Op_Clear = 2;
+
+	static final class Record {
+
+		final String key;
+		final Object value;
+		final boolean removed;
+
+		/**
+		 * A record with no key clears the whole group.
+		 */
+		static Record clear() {
+			return new Record(null, null, true);
+		}
+
+		static Record put(String key, Object value) {
+			return new Record(key, value, false);
+		}
+
+		static Record remove(String key) {
+			return new Record(key, null, true);
+		}
+
+		private Record(String key, Object value, boolean removed) {
+			this.key = key;
+			this.value = value;
+			this.removed = removed;
+		}
+	}
+
+	private final File journalFile;
+	private final StorageCodec codec;
+
+	/**
+	 * The end of the last complete record this process has applied, records past it were appended by other processes.
+	 */
+	private long readOffset;
+
+	StorageJournal(File storageFile, StorageCodec codec) {
+		this.journalFile = new File(storageFile.getParentFile(), storageFile.getName() + JOURNAL_POSTFIX);
+		this.codec = codec;
+	}
+
+	final File getFile() {
+		return journalFile;
+	}
+
+	final boolean exists() {
+		return journalFile.exists();
+	}
+
+	final long length() {
+		return journalFile.length();
+	}
+
+	final long lastModified() {
+		return journalFile.lastModified();
+	}
+
+	final void append(List<Record> records)
+		throws IOException {
+		append(records, false);
+	}
+
+	/**
+	 * @param sync Whether to return only once the records reached the storage device.
+	 */
+	final void append(List<Record> records, boolean sync)
+		throws IOException {
+		if (records.isEmpty())
+			return;
+
+		ByteBuffer buffer = ByteBuffer.allocate(records.size() * 64);
+		for (Record record : records) {
+			ByteBuffer payload = encodePayload(record);
+			buffer = BinaryStorageCodec.ensureCapacity(buffer, 5 + payload.remaining());
+			buffer.putInt(1 + payload.remaining());
+			buffer.put(record.key == null ? Op_Clear : record.removed ? Op_Remove : Op_Put);
+			buffer.put(payload);
+		}
+		buffer.flip();
+
+		// the storage folder may have been deleted while the module was running
+		File folder = journalFile.getParentFile();
+		if (folder != null && !folder.exists())
+			FileTools.mkDir(folder);
+
+		boolean created = !journalFile.exists();
+		FileOutputStream outputStream = new FileOutputStream(journalFile, true);
+		try {
+			FileChannel channel = outputStream.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+
+			if (sync)
+				channel.force(true);
+
+			// the appender is expected to be caught up with the journal, so its own records need no replay
+			readOffset = channel.position();
+		} finally {
+			outputStream.close();
+		}
+
+		if (sync && created)
+			StorageFiles.syncFolder(journalFile.getParentFile());
+	}
+
+	private ByteBuffer encodePayload(Record record)
+		throws IOException {
+		if (record.key == null)
+			return ByteBuffer.allocate(0);
+
+		if (record.removed)
+			return ByteBuffer.wrap(record.key.getBytes(Charsets.UTF_8));
+
+		return codec.encode(Collections.singletonMap(record.key, record.value));
+	}
+
+	/**
+	 * Applies the journal records, in order, on top of the given snapshot data.
+	 *
+	 * @param index The entries of the snapshot that were not decoded, if the group is lazily loaded.
+	 * @return the number of records replayed.
+	 */
+	final int replay(Map<String, Object> data, LazyStorageIndex index)
+		throws IOException {
+		readOffset = 0;
+		ArrayList<Record> records = new ArrayList<>();
+		readNew(records);
+		for (Record record : records) {
+			apply(record, data, index);
+		}
+
+		return records.size();
+	}
+
+	/**
+	 * Applies a single record on top of the given data.
+	 */
+	static void apply(Record record, Map<String, Object> data, LazyStorageIndex index) {
+		if (record.key == null) {
+			data.clear();
+			if (index != null)
+				index.clear();
+			return;
+		}
+
+		if (record.removed)
+			data.remove(record.key);
+		else
+			data.put(record.key, record.value);
+
+		if (index != null)
+			index.remove(record.key);
+	}
+
+	/**
+	 * Reads the complete records appended since the last read, and moves the read offset past them.
+	 *
+	 * @return the number of records read.
+	 */
+	final int readNew(List<Record> records)
+		throws IOException {
+		if (!journalFile.exists())
+			return 0;
+
+		ByteBuffer buffer;
+		FileInputStream inputStream = new FileInputStream(journalFile);
+		try {
+			FileChannel channel = inputStream.getChannel();
+			long size = channel.size();
+			if (size <= readOffset)
+				return 0;
+
+			buffer = ByteBuffer.allocate((int) (size - readOffset));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, readOffset + buffer.position()) == -1)
+					break;
+			}
+			buffer.flip();
+		} finally {
+			inputStream.close();
+		}
+
+		HashMap<String, Object> entry = new HashMap<>();
+		int read = 0;
+		while (buffer.remaining() >= 4) {
+			int length = buffer.getInt(buffer.position());
+			if (length < 1 || length > buffer.remaining() - 4)
+				break; // torn tail from a crashed or an in progress append, everything before it is valid
+
+			buffer.position(buffer.position() + 4);
+			int end = buffer.position() + length;
+			byte op = buffer.get();
+			ByteBuffer payload = buffer.slice();
+			payload.limit(length - 1);
+			buffer.position(end);
+
+			switch (op) {
+				case Op_Clear:
+					records.add(Record.clear());
+					break;
+
+				case Op_Remove:
+					byte[] keyBytes = new byte[payload.remaining()];
+					payload.get(keyBytes);
+					records.add(Record.remove(new String(keyBytes, Charsets.UTF_8)));
+					break;
+
+				case Op_Put:
+					entry.clear();
+					codec.decode(payload, entry);
+					for (Map.Entry<String, Object> put : entry.entrySet()) {
+						records.add(Record.put(put.getKey(), put.getValue()));
+					}
+					break;
+
+				default:
+					throw new IOException("Unknown journal record: " + op);
+			}
+
+			read++;
+		}
+
+		readOffset += buffer.position();
+		return read;
+	}
+
+	final void delete()
+		throws IOException {
+		if (journalFile.exists())
+			FileTools.delete(journalFile);
+
+		readOffset = 0;
+	}
+}
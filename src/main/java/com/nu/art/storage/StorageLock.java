@@ -0,0 +1,137 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nu.art.storage;
+
+import com.nu.art.core.tools.FileTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Coordinates the processes sharing a storage group through an OS level lock on a side file, which also holds the version of the group files.
+ * <pre>
+ * lock file: generation(8) version(8)
+ * </pre>
+ * The generation changes whenever the snapshot is rewritten, the version whenever records are appended to the journal.<br>
+ * File locks are held on behalf of the whole JVM, so the threads of this process are serialized by an in process lock per file.
+ */
+final class StorageLock {
+
+	static final String LOCK_POSTFIX = ".lock";
+
+	private static final int HeaderSize = 16;
+	private static final ConcurrentHashMap<String, ReentrantLock> ProcessLocks = new ConcurrentHashMap<>();
+
+	private final File lockFile;
+	private final ReentrantLock processLock;
+	private RandomAccessFile randomAccessFile;
+	private FileLock fileLock;
+	private long generation;
+	private long version;
+
+	StorageLock(File storageFile) {
+		this.lockFile = new File(storageFile.getParentFile(), storageFile.getName() + LOCK_POSTFIX);
+		ReentrantLock processLock = new ReentrantLock();
+		ReentrantLock existing = ProcessLocks.putIfAbsent(lockFile.getAbsolutePath(), processLock);
+		this.processLock = existing != null ? existing : processLock;
+	}
+
+	/**
+	 * Blocks until the lock is held, and reads the current version of the group files.
+	 *
+	 * @param shared Whether the lock is only needed for reading, multiple readers may hold it at once.
+	 */
+	final void acquire(boolean shared)
+		throws IOException {
+		processLock.lock();
+		try {
+			if (!lockFile.getParentFile().exists())
+				FileTools.mkDir(lockFile.getParentFile());
+
+			randomAccessFile = new RandomAccessFile(lockFile, "rw");
+			FileChannel channel = randomAccessFile.getChannel();
+			fileLock = channel.lock(0, Long.MAX_VALUE, shared);
+
+			ByteBuffer header = ByteBuffer.allocate(HeaderSize);
+			channel.read(header, 0);
+			header.flip();
+			boolean initialized = header.remaining() == HeaderSize;
+			generation = initialized ? header.getLong() : 0;
+			version = initialized ? header.getLong() : 0;
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether the current thread holds the lock.
+	 */
+	final boolean isHeld() {
+		return processLock.isHeldByCurrentThread();
+	}
+
+	final void release() {
+		try {
+			if (fileLock != null)
+				fileLock.release();
+
+			if (randomAccessFile != null)
+				randomAccessFile.close();
+		} catch (IOException ignore) {
+		} finally {
+			fileLock = null;
+			randomAccessFile = null;
+			processLock.unlock();
+		}
+	}
+
+	final long getGeneration() {
+		return generation;
+	}
+
+	final long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Must be called while holding the exclusive lock.
+	 */
+	final void update(long generation, long version, boolean sync)
+		throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HeaderSize);
+		header.putLong(generation).putLong(version).flip();
+
+		FileChannel channel = randomAccessFile.getChannel();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+
+		if (sync)
+			channel.force(false);
+
+		this.generation = generation;
+		this.version = version;
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * cyborg-core is an extendable  module based framework for Android.
+ *
+ * Copyright (C) 2018  Adam van der Kruk aka TacB0sS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nu.art.storage;
+
+import com.nu.art.core.tools.FileTools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static com.nu.art.storage.PreferencesModule.EXPIRY_PREFIX;
+
+/**
+ * The files of a storage group split by key hash, each written on its own with a temp file and rename.<br>
+ * The dirty flags are not synchronized, they are expected to be guarded by the write lock of the owning storage.<br>
+ * The count of shards is not stored, the files found on disk are read whatever count they were written with.
+ */
+final class StorageShards {
+
+	static final String ShardInfix = ".shard-";
+
+	private final String baseName;
+	private final File folder;
+	private final File[] files;
+	private final boolean[] dirty;
+
+	StorageShards(File storageFile, int count) {
+		this.baseName = storageFile.getName() + ShardInfix;
+		this.folder = storageFile.getParentFile();
+		this.files = new File[count];
+		this.dirty = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			files[i] = new File(storageFile.getParentFile(), baseName + i);
+		}
+	}
+
+	final int count() {
+		return files.length;
+	}
+
+	/**
+	 * The expiration record of a key is placed in the shard of the key, so a shard always holds complete entries.
+	 */
+	final int shardOf(String key) {
+		if (key.startsWith(EXPIRY_PREFIX))
+			key = key.substring(EXPIRY_PREFIX.length());
+
+		return (key.hashCode() & 0x7fffffff) % files.length;
+	}
+
+	final void markDirty(String key) {
+		dirty[shardOf(key)] = true;
+	}
+
+	final void markDirty(int shard) {
+		dirty[shard] = true;
+	}
+
+	final void markAllDirty() {
+		for (int i = 0; i < dirty.length; i++) {
+			dirty[i] = true;
+		}
+	}
+
+	/**
+	 * @return the shards that changed since the previous call, their flags are cleared.
+	 */
+	final boolean[] takeDirty() {
+		boolean[] taken = dirty.clone();
+		for (int i = 0; i < dirty.length; i++) {
+			dirty[i] = false;
+		}
+		return taken;
+	}
+
+	/**
+	 * @return an empty map for each of the requested shards, with null in place of the other shards.
+	 */
+	final ArrayList<HashMap<String, Object>> newSplit(boolean[] shards) {
+		ArrayList<HashMap<String, Object>> split = new ArrayList<>(files.length);
+		for (int i = 0; i < files.length; i++) {
+			split.add(shards[i] ? new HashMap<String, Object>() : null);
+		}
+		return split;
+	}
+
+	/**
+	 * @return the entries of the requested shards, with null in place of the other shards.
+	 */
+	final ArrayList<HashMap<String, Object>> split(Map<String, Object> entries, boolean[] shards) {
+		ArrayList<HashMap<String, Object>> split = newSplit(shards);
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			HashMap<String, Object> shard = split.get(shardOf(entry.getKey()));
+			if (shard != null)
+				shard.put(entry.getKey(), entry.getValue());
+		}
+
+		return split;
+	}
+
+	final File getFile(int shard) {
+		return shard < files.length ? files[shard] : new File(folder, baseName + shard);
+	}
+
+	private File getTempFile(int shard) {
+		return new File(folder, baseName + shard + ".tmp");
+	}
+
+	/**
+	 * @return the indexes of the shards found on disk, including those beyond the current count.
+	 */
+	private TreeSet<Integer> listOnDisk() {
+		TreeSet<Integer> found = new TreeSet<>();
+		String[] names = folder.list();
+		if (names == null)
+			return found;
+
+		for (String name : names) {
+			if (!name.startsWith(baseName))
+				continue;
+
+			String index = name.substring(baseName.length());
+			if (index.endsWith(".tmp"))
+				index = index.substring(0, index.length() - ".tmp".length());
+
+			try {
+				found.add(Integer.parseInt(index));
+			} catch (NumberFormatException ignore) {
+				// not a shard of this group
+			}
+		}
+		return found;
+	}
+
+	final boolean isBackedBy(String fileName) {
+		return fileName.startsWith(baseName);
+	}
+
+	final boolean exists() {
+		return !listOnDisk().isEmpty();
+	}
+
+	final long lastModified() {
+		long lastModified = 0;
+		for (int shard : listOnDisk()) {
+			lastModified = Math.max(lastModified, getFile(shard).lastModified());
+		}
+		return lastModified;
+	}
+
+	/**
+	 * Decodes all the shards found on disk into the given map, recovering a shard whose rename did not complete.<br>
+	 * Shards written with a different count hold keys this count places elsewhere, such a key is only taken if its own shard does not hold it.
+	 *
+	 * @return true if the shards on disk do not match the current count, and all of them have to be written again.
+	 */
+	final boolean read(StorageCodec codec, Map<String, Object> into)
+		throws IOException {
+		HashMap<String, Object> misplaced = new HashMap<>();
+		boolean beyondCount = false;
+		for (int shard : listOnDisk()) {
+			File file = getFile(shard);
+			if (!file.exists()) {
+				File tempFile = getTempFile(shard);
+				if (!tempFile.exists())
+					continue;
+
+				FileTools.renameFile(tempFile, file);
+			}
+
+			ByteBuffer buffer = StorageFiles.readFully(file);
+			if (!codec.canDecode(buffer))
+				throw new IOException("Unknown storage format of shard: " + file.getAbsolutePath());
+
+			HashMap<String, Object> entries = new HashMap<>();
+			codec.decode(buffer, entries);
+			beyondCount |= shard >= files.length;
+			for (Map.Entry<String, Object> entry : entries.entrySet()) {
+				if (shard < files.length && shardOf(entry.getKey()) == shard)
+					into.put(entry.getKey(), entry.getValue());
+				else
+					misplaced.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		for (Map.Entry<String, Object> entry : misplaced.entrySet()) {
+			if (!into.containsKey(entry.getKey()))
+				into.put(entry.getKey(), entry.getValue());
+		}
+
+		return beyondCount || !misplaced.isEmpty();
+	}
+
+	/**
+	 * Deletes the shards left on disk beyond the current count, once their keys were written to the current shards.
+	 */
+	final void deleteBeyondCount()
+		throws IOException {
+		for (int shard : listOnDisk()) {
+			if (shard < files.length)
+				continue;
+
+			FileTools.delete(getFile(shard));
+			FileTools.delete(getTempFile(shard));
+		}
+	}
+
+	final void write(int shard, ByteBuffer encoded, boolean durable)
+		throws IOException {
+		File tempFile = getTempFile(shard);
+		StorageFiles.write(encoded, tempFile, durable);
+		StorageFiles.replace(tempFile, files[shard], durable);
+	}
+}
@@ -1,21 +1,44 @@
 package com.nu.art.storage;
 
+import com.google.gson.JsonElement;
 import com.nu.art.core.exceptions.runtime.BadImplementationException;
 import com.nu.art.modular.tests.ModuleManager_TestClass;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
 import com.nu.art.storage.Test_Setup.JsonSerializer;
+import com.nu.art.storage.Test_Setup.Model;
 import com.nu.art.storage.Test_Setup.PrefModel;
 
 import org.junit.Test;
 
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 
-import static com.nu.art.storage.Test_Utils.sleepFor;
 
 public class Test_CustomPref
 	extends Test_StorageBase {
 
+	private static final BinarySerializer<Model> ModelSerializer = new BinarySerializer<Model>() {
+		@Override
+		public byte[] serialize(Model value) {
+			return value.value.getBytes(Charset.forName("UTF-8"));
+		}
+
+		@Override
+		public Model deserialize(ByteBuffer buffer, Type type) {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new Model(new String(bytes, Charset.forName("UTF-8")));
+		}
+	};
+
 	@Test
-	public void test_CustomPrefsStateful() {
+	public void test_CustomPrefsStateful()
+		throws Exception {
 		for (int i = 0; i < 10; i++) {
 			Test_Setup.cleanUp();
 
@@ -24,7 +47,7 @@ public class Test_CustomPref
 			hashMap.put("pah", "zevel");
 			model.pref.set(hashMap);
 
-			sleepFor(300);
+			model.pref.getPreferences().flush().get();
 
 			getModule(PreferencesModule.class).clearMemCache();
 			Object value = model.pref.get().get("pah");
@@ -43,7 +66,8 @@ public class Test_CustomPref
 	}
 
 	@Test
-	public void test_CustomPrefsAsString() {
+	public void test_CustomPrefsAsString()
+		throws Exception {
 
 		for (int i = 0; i < 10; i++) {
 			PrefModel<HashMap> model = Test_Setup.getCustomModelStateful();
@@ -58,7 +82,7 @@ public class Test_CustomPref
 
 			((CustomPreference) model.pref).set(JsonSerializer.gson.toJson(hashMap), true);
 
-			sleepFor(300);
+			model.pref.getPreferences().flush().get();
 
 			getModule(PreferencesModule.class).clearMemCache();
 			Object value = model.pref.get(true).get(key);
@@ -77,4 +101,170 @@ public class Test_CustomPref
 			logInfo("+---------------------------------------------+");
 		}
 	}
+
+	private static class LongHolder {
+
+		long value;
+	}
+
+	@Test
+	public void test_CustomPrefsKeepLongPrecision()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		long value = (1L << 53) + 1;
+		CustomPreference<LongHolder> pref = new CustomPreference<>("pref-long-holder", LongHolder.class, new LongHolder());
+		LongHolder holder = new LongHolder();
+		holder.value = value;
+		pref.set(holder);
+
+		pref.getPreferences().flush().get();
+
+		getModule(PreferencesModule.class).clearMemCache();
+		pref.clearMemCache();
+		if (pref.get().value != value)
+			throw new BadImplementationException("lost the precision of a long: " + pref.get().value);
+
+		if (!(pref.getPreferences().get("pref-long-holder") instanceof String))
+			throw new BadImplementationException("the json codec should keep the json string");
+	}
+
+	@Test
+	public void test_CustomPrefsAsJsonTree()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		getModule(PreferencesModule.class).defineGroup("binary-tree", new GroupConfig().setCodec(BinaryStorageCodec.Codec));
+		CustomPreference<HashMap> pref = new CustomPreference<HashMap>("pref-tree", HashMap.class, new HashMap()).setStorageGroup("binary-tree");
+		HashMap hashMap = new HashMap();
+		hashMap.put("pah", "zevel");
+		pref.set(hashMap);
+
+		pref.getPreferences().flush().get();
+
+		getModule(PreferencesModule.class).clearMemCache();
+		pref.clearMemCache();
+		if (!"zevel".equals(pref.get().get("pah")))
+			throw new BadImplementationException("did not save json tree correctly");
+
+		if (!(pref.getPreferences().get("pref-tree") instanceof JsonElement))
+			throw new BadImplementationException("the binary codec should keep the json tree");
+	}
+
+	@Test
+	public void test_CustomPrefsAsBytes()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		CustomPreference<Model> pref = new CustomPreference<>("pref-bytes", Model.class, ModelSerializer, new Model("default"));
+		pref.set(new Model("binary value"));
+
+		pref.getPreferences().flush().get();
+
+		getModule(PreferencesModule.class).clearMemCache();
+		pref.clearMemCache();
+		if (!new Model("binary value").equals(pref.get()))
+			throw new BadImplementationException("did not save bytes correctly: " + pref.get());
+	}
+
+	@Test
+	public void test_BytesAreKeptAsBase64UnderTheJsonCodec()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		CustomPreference<Model> pref = new CustomPreference<>("pref-bytes-base64", Model.class, ModelSerializer, new Model("default"));
+		pref.set(new Model("binary value"));
+		pref.getPreferences().flush().get();
+
+		getModule(PreferencesModule.class).clearMemCache();
+		pref.clearMemCache();
+		Object stored = pref.getPreferences().get("pref-bytes-base64");
+		if (!Base64.getEncoder().encodeToString("binary value".getBytes(Charset.forName("UTF-8"))).equals(stored))
+			throw new BadImplementationException("the json codec should keep the bytes as a Base64 string, but kept: " + stored);
+
+		if (!new Model("binary value").equals(pref.get()))
+			throw new BadImplementationException("did not read the Base64 bytes back: " + pref.get());
+
+		// the string form of the bytes is their Base64, in groups that keep them as blobs too
+		getModule(PreferencesModule.class).defineGroup("binary-tree", new GroupConfig().setCodec(BinaryStorageCodec.Codec));
+		CustomPreference<Model> blob = new CustomPreference<>("pref-bytes-blob", Model.class, ModelSerializer, new Model("default")).setStorageGroup("binary-tree");
+		for (CustomPreference<Model> set : Arrays.asList(pref, blob)) {
+			set.set(Base64.getEncoder().encodeToString("set as a string".getBytes(Charset.forName("UTF-8"))));
+			if (!new Model("set as a string").equals(set.get()))
+				throw new BadImplementationException("did not set the bytes from their Base64: " + set.get());
+		}
+
+		if (!(blob.getPreferences().get("pref-bytes-blob") instanceof byte[]))
+			throw new BadImplementationException("the binary codec should keep the bytes as a blob");
+	}
+
+	@Test
+	public void test_IdenticalValueAfterReloadIsNotWritten()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		getModule(PreferencesModule.class).defineGroup("binary-tree", new GroupConfig().setCodec(BinaryStorageCodec.Codec));
+		assertNotRewritten(new CustomPreference<>("pref-reload-json", Model.class, new Model("default")));
+		assertNotRewritten(new CustomPreference<>("pref-reload-bytes", Model.class, ModelSerializer, new Model("default")));
+		assertNotRewritten(new CustomPreference<>("pref-reload-tree", Model.class, new Model("default")).setStorageGroup("binary-tree"));
+	}
+
+	private void assertNotRewritten(CustomPreference<Model> pref)
+		throws Exception {
+		pref.set(new Model("reloaded value"));
+		StorageImpl storage = pref.getPreferences();
+		storage.flush().get();
+
+		// the stored value is now the one decoded by the codec
+		getModule(PreferencesModule.class).clearMemCache();
+		pref.clearMemCache();
+		pref.get();
+
+		long flushes = storage.getSaveMetrics().getFlushCount();
+		pref.set(new Model("reloaded value"));
+		storage.flush().get();
+		if (storage.getSaveMetrics().getFlushCount() != flushes)
+			throw new BadImplementationException("setting the same value after a reload was written again: " + pref.key);
+	}
+
+	@Test
+	public void test_CustomPrefsDefaultValue() {
+		Test_Setup.cleanUp();
+
+		HashMap defaultValue = new HashMap();
+		defaultValue.put("pah", "zevel");
+		CustomPreference<HashMap> pref = new CustomPreference<HashMap>("pref-default", HashMap.class, defaultValue);
+
+		HashMap first = pref.get();
+		first.put("pah", "modified");
+		pref.clearMemCache();
+
+		HashMap second = pref.get();
+		if (second == first || !"zevel".equals(second.get("pah")))
+			throw new BadImplementationException("the default value should be copied");
+
+		pref.setImmutable(true);
+		pref.clearMemCache();
+		if (pref.get() != defaultValue)
+			throw new BadImplementationException("an immutable default value should be shared");
+	}
+
+	@Test
+	public void test_ImmutableValueIsDecodedOnce() {
+		Test_Setup.cleanUp();
+
+		CustomPreference<Model> pref = new CustomPreference<Model>("pref-immutable", Model.class, null).setImmutable(true);
+		pref.set(new Model("stored value"));
+		pref.clearMemCache();
+
+		Model first = pref.get();
+		pref.clearMemCache();
+		if (pref.get() != first)
+			throw new BadImplementationException("an unchanged immutable value should not be decoded again");
+
+		pref.set("{\"value\":\"changed value\"}");
+		Model changed = pref.get();
+		if (changed == first || !"changed value".equals(changed.value))
+			throw new BadImplementationException("a changed immutable value should be decoded again");
+	}
 }
@@ -0,0 +1,95 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+
+public class Test_PrimitivePreferences
+	extends Test_StorageBase {
+
+	private static final int Iterations = 1000000;
+
+	@Test
+	public void test_PrimitiveAccessors()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		IntegerPreference intPref = new IntegerPreference("pref-int-primitive", 42);
+		LongPreference longPref = new LongPreference("pref-long-primitive", 42L);
+		BooleanPreference booleanPref = new BooleanPreference("pref-boolean-primitive", false);
+
+		intPref.setInt(21);
+		longPref.setLong((1L << 40) + 1);
+		booleanPref.setBoolean(true);
+		intPref.getPreferences().flush().get();
+
+		getModule(PreferencesModule.class).clearMemCache();
+		if (intPref.getInt() != 21 || intPref.get() != 21)
+			throw new BadImplementationException("wrong int value: " + intPref.getInt());
+
+		if (longPref.getLong() != (1L << 40) + 1)
+			throw new BadImplementationException("wrong long value: " + longPref.getLong());
+
+		if (!booleanPref.getBoolean())
+			throw new BadImplementationException("wrong boolean value");
+	}
+
+	@Test
+	public void test_PrimitiveAccessorsDoNotAllocate() {
+		Test_Setup.cleanUp();
+
+		IntegerPreference pref = new IntegerPreference("pref-int-allocation", 42);
+		pref.setInt(1000);
+		StorageImpl storage = pref.getPreferences();
+
+		long sum = 0;
+		for (int i = 0; i < Iterations; i++) {
+			sum += storage.get("pref-int-allocation", 0);
+			sum += pref.getInt();
+			pref.setInt(i);
+		}
+
+		long before = allocatedBytes();
+		for (int i = 0; i < Iterations; i++) {
+			sum += storage.get("pref-int-allocation", 0);
+		}
+		long storageAllocated = allocatedBytes() - before;
+
+		before = allocatedBytes();
+		for (int i = 0; i < Iterations; i++) {
+			sum += pref.getInt();
+		}
+		long getAllocated = allocatedBytes() - before;
+
+		// the writes take longer to be compiled, the best of a few rounds is the compiled one
+		// the default overload is measured, it only logs, and so allocates, while debugging
+		long setAllocated = Long.MAX_VALUE;
+		for (int round = 0; round < 5; round++) {
+			before = allocatedBytes();
+			for (int i = 0; i < Iterations; i++) {
+				pref.setInt(i);
+			}
+			setAllocated = Math.min(setAllocated, allocatedBytes() - before);
+		}
+
+		logInfo("Allocated bytes per " + Iterations + " calls - storage get: " + storageAllocated + ", getInt: " + getAllocated + ", setInt: " + setAllocated + " (" + sum + ")");
+		// leaves room for the measurement itself
+		if (storageAllocated > 1024)
+			throw new BadImplementationException("primitive storage reads allocated: " + storageAllocated + " bytes");
+
+		if (getAllocated > 1024)
+			throw new BadImplementationException("getInt allocated: " + getAllocated + " bytes");
+
+		// the saves the writes trigger arm their timers, boxing would allocate at least 16 bytes per write
+		if (setAllocated > Iterations / 100)
+			throw new BadImplementationException("setInt allocated: " + setAllocated + " bytes");
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
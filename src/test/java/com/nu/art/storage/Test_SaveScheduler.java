@@ -0,0 +1,41 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+
+import org.junit.Test;
+
+public class Test_SaveScheduler {
+
+	@Test
+	public void test_ContinuousWritesAreFlushedWithinMaxLatency() {
+		SaveScheduler scheduler = new SaveScheduler(100, 1000);
+		long firstDirty = 1000;
+		long flushAt = Long.MAX_VALUE;
+		for (long now = 1000; now < 6000; now += 10) {
+			if (now >= flushAt) {
+				scheduler.onFlush();
+				firstDirty = now;
+			}
+
+			flushAt = now + scheduler.onMutation(now);
+			if (flushAt > firstDirty + 1000)
+				throw new BadImplementationException("flush was pushed past the max latency: " + (flushAt - firstDirty));
+		}
+
+		if (scheduler.getMetrics().getFlushCount() < 4)
+			throw new BadImplementationException("continuous writes were not flushed: " + scheduler.getMetrics());
+	}
+
+	@Test
+	public void test_FlushCoalescesMutations() {
+		SaveScheduler scheduler = new SaveScheduler(100, 1000);
+		for (int i = 0; i < 50; i++) {
+			scheduler.onMutation(1000 + i);
+		}
+		scheduler.onFlush();
+
+		SaveMetrics metrics = scheduler.getMetrics();
+		if (metrics.getFlushCount() != 1 || metrics.getLastCoalesced() != 50)
+			throw new BadImplementationException("wrong metrics: " + metrics);
+	}
+}
@@ -18,6 +18,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
 
 import static com.nu.art.modular.tests.ModuleManager_TestClass.getModule;
 import static com.nu.art.storage.Test_Utils.sleepFor;
@@ -42,9 +43,16 @@ public class Test_Setup {
 		}
 	}
 
-	private static final File storageFolder = new File("build/test/storage");
+	static final File storageFolder = new File("build/test/storage");
 
 	static void cleanUp() {
+		try {
+			// the saves still pending from the previous test would recreate the files while they are deleted
+			getModule(PreferencesModule.class).flush().get();
+		} catch (InterruptedException | ExecutionException ignore) {
+			// a group that fails to save is deleted all the same
+		}
+
 		try {
 			FileTools.delete(storageFolder);
 			getModule(PreferencesModule.class).clear();
@@ -0,0 +1,62 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+
+public class Test_StorageAsync
+	extends Test_StorageBase {
+
+	private static final String Group = "async-group";
+
+	@Test
+	public void test_FlushCompletesOnceWritten()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		StringPreference pref = new StringPreference("pref-async", "default").setStorageGroup(Group);
+		pref.setAsync("value").get();
+
+		File storageFile = pref.getPreferences().getStorageFile();
+		if (!storageFile.exists())
+			throw new BadImplementationException("storage file should exist once the flush completed");
+
+		module.clearMemCache();
+		String value = pref.getAsync().get();
+		if (!"value".equals(value))
+			throw new BadImplementationException("wrong value after reload: " + value);
+
+		pref.set("other");
+		module.flush().get();
+		module.clearMemCache();
+		if (!"other".equals(pref.get()))
+			throw new BadImplementationException("wrong value after flush: " + pref.get());
+	}
+
+	@Test
+	public void test_RedefinedGroupSavesItsPendingChanges() {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setSaveDelay(60000, 60000));
+		StringPreference pref = new StringPreference("pref-redefined", "default").setStorageGroup(Group);
+		pref.set("value");
+
+		StorageImpl previous = pref.getPreferences();
+		File storageFile = previous.getStorageFile();
+		module.defineGroup(Group, new GroupConfig());
+		if (!previous.isDisposed())
+			throw new BadImplementationException("the previous definition of the group was not disposed");
+
+		if (!storageFile.exists())
+			throw new BadImplementationException("the pending changes of the previous definition were not saved");
+
+		if (!"value".equals(pref.get()))
+			throw new BadImplementationException("the redefined group lost the pending value: " + pref.get());
+	}
+}
@@ -0,0 +1,174 @@
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.core.tools.FileTools;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+import com.nu.art.storage.StorageChangeDetector.WatchedStorage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.nu.art.storage.Test_Utils.sleepFor;
+
+public class Test_StorageChangeDetector
+	extends Test_StorageBase {
+
+	private static final File Folder = new File("build/test/change-detector");
+	private static final long Timeout = 10000;
+
+	@Test
+	public void test_WatchServiceMarksOnlyTheChangedStorage()
+		throws Exception {
+		FakeStorage changed = new FakeStorage("changed.json");
+		FakeStorage untouched = new FakeStorage("untouched.json");
+
+		StorageChangeDetector detector = startDetector(0, changed, untouched);
+		try {
+			changed.modify();
+			if (!changed.stale.await(Timeout, TimeUnit.MILLISECONDS))
+				throw new BadImplementationException("the watch service did not mark the changed storage as stale");
+
+			if (untouched.stale.getCount() == 0)
+				throw new BadImplementationException("a storage whose files did not change was marked as stale");
+		} finally {
+			detector.stop();
+		}
+	}
+
+	@Test
+	public void test_PollingMarksTheChangedStorage()
+		throws Exception {
+		FakeStorage changed = new FakeStorage("changed.json");
+		FakeStorage untouched = new FakeStorage("untouched.json");
+
+		StorageChangeDetector detector = startDetector(10, changed, untouched);
+		try {
+			changed.modify();
+			if (!changed.stale.await(Timeout, TimeUnit.MILLISECONDS))
+				throw new BadImplementationException("polling did not mark the changed storage as stale");
+
+			if (untouched.stale.getCount() == 0)
+				throw new BadImplementationException("a storage whose files did not change was marked as stale");
+		} finally {
+			detector.stop();
+		}
+	}
+
+	@Test
+	public void test_DeletedFolderLosesItsWatch()
+		throws Exception {
+		FakeStorage storage = new FakeStorage("watched.json");
+
+		StorageChangeDetector detector = startDetector(0, storage);
+		try {
+			FileTools.delete(Folder);
+			if (!storage.watchLost.await(Timeout, TimeUnit.MILLISECONDS))
+				throw new BadImplementationException("the storage was not told its folder is no longer watched");
+		} finally {
+			detector.stop();
+		}
+	}
+
+	@Test
+	public void test_ExternalChangeIsPickedUp()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		StringPreference pref = new StringPreference("pref-external", "default");
+		pref.set("internal");
+		StorageImpl storage = pref.getPreferences();
+		storage.flush().get();
+
+		// another writer replaces the file, the group reloads it on the next access after the change was detected
+		File storageFile = storage.getStorageFile();
+		StorageFiles.write(new JsonStorageCodec(new Gson()).encode(Collections.<String, Object>singletonMap("pref-external", "external")), storageFile);
+		if (!storageFile.setLastModified(System.currentTimeMillis() + 2000))
+			throw new BadImplementationException("could not move the modification time of the storage file");
+
+		long deadline = System.currentTimeMillis() + Timeout;
+		while (!"external".equals(pref.get())) {
+			if (System.currentTimeMillis() > deadline)
+				throw new BadImplementationException("the external change was not picked up: " + pref.get());
+
+			sleepFor(10);
+		}
+	}
+
+	private StorageChangeDetector startDetector(long pollingInterval, FakeStorage... storages)
+		throws IOException {
+		FileTools.delete(Folder);
+		FileTools.mkDir(Folder);
+
+		// the files are created before any of them is watched, so the only events are those of the test
+		for (FakeStorage storage : storages) {
+			storage.create();
+		}
+
+		StorageChangeDetector detector = new StorageChangeDetector(pollingInterval);
+		for (FakeStorage storage : storages) {
+			detector.register(storage);
+		}
+
+		detector.start();
+		return detector;
+	}
+
+	private static class FakeStorage
+		implements WatchedStorage {
+
+		private final File file;
+		private final CountDownLatch stale = new CountDownLatch(1);
+		private final CountDownLatch watchLost = new CountDownLatch(1);
+		private long lastModified;
+
+		FakeStorage(String fileName) {
+			this.file = new File(Folder, fileName);
+		}
+
+		final synchronized void create()
+			throws IOException {
+			Files.write(file.toPath(), new byte[0]);
+			lastModified = file.lastModified();
+		}
+
+		final synchronized void modify()
+			throws IOException {
+			Files.write(file.toPath(), "{}".getBytes());
+			// a modification time distinct from the one it was created with, whatever the resolution of the file system
+			if (!file.setLastModified(lastModified + 2000))
+				throw new IOException("could not move the modification time of: " + file);
+		}
+
+		@Override
+		public File getStorageFile() {
+			return file;
+		}
+
+		@Override
+		public boolean isBackedBy(String fileName) {
+			return file.getName().equals(fileName);
+		}
+
+		@Override
+		public synchronized boolean isModifiedOnDisk() {
+			return file.lastModified() > lastModified;
+		}
+
+		@Override
+		public void markStale() {
+			stale.countDown();
+		}
+
+		@Override
+		public void onWatchLost() {
+			watchLost.countDown();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.StorageChangeListener;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Test_StorageChangeListeners
+	extends Test_StorageBase {
+
+	private static final String Group = "observed-group";
+	private static final long Timeout = 5000;
+
+	@Test
+	public void test_BurstIsCoalesced()
+		throws InterruptedException {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.setChangeDispatchWindow(200);
+
+		final LinkedBlockingQueue<Set<String>> keyNotifications = new LinkedBlockingQueue<>();
+		final LinkedBlockingQueue<Set<String>> groupNotifications = new LinkedBlockingQueue<>();
+		IntegerPreference pref = new IntegerPreference("pref-observed", -1).setStorageGroup(Group);
+		IntegerPreference other = new IntegerPreference("pref-other", -1).setStorageGroup(Group);
+		pref.addChangeListener(new StorageChangeListener() {
+			@Override
+			public void onStorageChanged(String group, Set<String> keys) {
+				keyNotifications.add(new HashSet<>(keys));
+			}
+		});
+
+		module.addChangeListener(Group, new StorageChangeListener() {
+			@Override
+			public void onStorageChanged(String group, Set<String> keys) {
+				groupNotifications.add(new HashSet<>(keys));
+			}
+		});
+
+		for (int i = 0; i < 100; i++) {
+			pref.setInt(i);
+		}
+		other.setInt(1);
+
+		// the key listeners of a dispatch are notified after the group listeners, so the first key notification ends the dispatch
+		Set<String> keys = keyNotifications.poll(Timeout, TimeUnit.MILLISECONDS);
+		if (keys == null || !keys.equals(Collections.singleton("pref-observed")))
+			throw new BadImplementationException("expected a single key notification with its own key, but got: " + keys);
+
+		keys = groupNotifications.poll();
+		if (keys == null || !keys.equals(new HashSet<>(Arrays.asList("pref-observed", "pref-other"))))
+			throw new BadImplementationException("expected both keys in a single group notification, but got: " + keys);
+
+		// an unchanged value is not a change, the next dispatch only carries the other key
+		pref.setInt(99);
+		other.setInt(2);
+		keys = groupNotifications.poll(Timeout, TimeUnit.MILLISECONDS);
+		if (keys == null || !keys.equals(Collections.singleton("pref-other")))
+			throw new BadImplementationException("an unchanged value should not notify, but got: " + keys);
+
+		if (!keyNotifications.isEmpty() || !groupNotifications.isEmpty())
+			throw new BadImplementationException("the burst was not coalesced into a single notification per listener");
+	}
+}
@@ -0,0 +1,179 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.google.gson.Gson;
+import com.nu.art.core.tools.FileTools;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.nu.art.storage.Test_Utils.sleepFor;
+
+/**
+ * Closes modules of its own, the module shared by the other tests stays open.
+ */
+public class Test_StorageClose
+	extends Test_StorageBase {
+
+	private static final File storageFolder = new File("build/test/storage-close");
+
+	private static PreferencesModule newModule(long shutdownFlushTimeout)
+		throws Exception {
+		Constructor<PreferencesModule> constructor = PreferencesModule.class.getDeclaredConstructor();
+		constructor.setAccessible(true);
+
+		PreferencesModule module = constructor.newInstance();
+		module.setStorageFolder(storageFolder);
+		module.setShutdownFlushTimeout(shutdownFlushTimeout);
+		module.init();
+		return module;
+	}
+
+	private static void assertRejected(StorageImpl storage) {
+		try {
+			storage.put("pref-close", "after close");
+		} catch (BadImplementationException e) {
+			if (!"before close".equals(storage.get("pref-close", null)))
+				throw new BadImplementationException("a rejected write changed the data: " + storage.get("pref-close", null));
+
+			return;
+		}
+
+		throw new BadImplementationException("a write after close was accepted");
+	}
+
+	@Test
+	public void test_CloseFlushesAndRejectsWrites()
+		throws Exception {
+		FileTools.delete(storageFolder);
+		PreferencesModule module = newModule(0);
+		StorageImpl storage = (StorageImpl) module.getStorage("close-group");
+		storage.put("pref-close", "before close");
+
+		List<String> unflushed = module.close(5000);
+		if (!unflushed.isEmpty())
+			throw new BadImplementationException("groups were not flushed: " + unflushed);
+
+		assertRejected(storage);
+		try {
+			module.getStorage("close-group");
+			throw new BadImplementationException("a closed module should not open groups");
+		} catch (BadImplementationException e) {
+			if (!e.getMessage().contains("closed"))
+				throw e;
+		}
+
+		PreferencesModule reopened = newModule(0);
+		try {
+			if (!"before close".equals(((StorageImpl) reopened.getStorage("close-group")).get("pref-close", null)))
+				throw new BadImplementationException("close did not save the group");
+		} finally {
+			reopened.close(1000);
+		}
+	}
+
+	@Test
+	public void test_ShutdownHookFlushesAndRejectsWrites()
+		throws Exception {
+		FileTools.delete(storageFolder);
+		PreferencesModule module = newModule(5000);
+		StorageImpl storage = (StorageImpl) module.getStorage("close-group");
+		storage.put("pref-close", "before close");
+
+		Field field = PreferencesModule.class.getDeclaredField("shutdownHook");
+		field.setAccessible(true);
+		Thread shutdownHook = (Thread) field.get(module);
+		if (shutdownHook == null)
+			throw new BadImplementationException("no shutdown hook was registered");
+
+		shutdownHook.run();
+		assertRejected(storage);
+		if (Runtime.getRuntime().removeShutdownHook(shutdownHook))
+			throw new BadImplementationException("closing should remove the shutdown hook");
+
+		PreferencesModule reopened = newModule(0);
+		try {
+			if (!"before close".equals(((StorageImpl) reopened.getStorage("close-group")).get("pref-close", null)))
+				throw new BadImplementationException("the shutdown hook did not save the group");
+		} finally {
+			reopened.close(1000);
+		}
+	}
+
+	@Test
+	public void test_CloseTimeoutBehindASlowSaveKeepsTheLatestMutations()
+		throws Exception {
+		FileTools.delete(storageFolder);
+		PreferencesModule module = newModule(0);
+		SlowCodec codec = new SlowCodec();
+		module.defineGroup("slow-group", new GroupConfig().setCodec(codec));
+		StorageImpl storage = (StorageImpl) module.getStorage("slow-group");
+
+		storage.put("pref-close", "first");
+		storage.flush();
+		if (!codec.started.await(5000, TimeUnit.MILLISECONDS))
+			throw new BadImplementationException("the save did not start");
+
+		// the latest mutation is only saved by the flush of close, queued behind the save that is held
+		storage.put("pref-close", "latest");
+		List<String> unflushed = module.close(100);
+		codec.release.countDown();
+		if (!unflushed.contains("slow-group"))
+			throw new BadImplementationException("the group held by a slow save should not be reported as flushed: " + unflushed);
+
+		HashMap<String, Object> saved = new HashMap<>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!"latest".equals(saved.get("pref-close"))) {
+			if (System.currentTimeMillis() > deadline)
+				throw new BadImplementationException("the flush queued by close was dropped, saved: " + saved);
+
+			sleepFor(10);
+			saved.clear();
+			if (storage.getStorageFile().exists())
+				codec.decode(StorageFiles.readFully(storage.getStorageFile()), saved);
+		}
+	}
+
+	private static class SlowCodec
+		implements StorageCodec {
+
+		private final JsonStorageCodec codec = new JsonStorageCodec(new Gson());
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public boolean canDecode(ByteBuffer buffer) {
+			return codec.canDecode(buffer);
+		}
+
+		@Override
+		public ByteBuffer encode(Map<String, Object> data)
+			throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while held", e);
+			}
+			return codec.encode(data);
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, Map<String, Object> into)
+			throws IOException {
+			codec.decode(buffer, into);
+		}
+	}
+}
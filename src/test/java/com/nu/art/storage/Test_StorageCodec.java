@@ -0,0 +1,100 @@
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class Test_StorageCodec {
+
+	@Test
+	public void test_BinaryCodecPreservesTypes()
+		throws IOException {
+		HashMap<String, Object> data = new HashMap<>();
+		data.put("boolean", true);
+		data.put("int", 42);
+		data.put("long", Long.MAX_VALUE - 1);
+		data.put("float", 4.2f);
+		data.put("double", 4.2);
+		data.put("string", "zevel");
+		data.put("blob", new byte[]{1, 2, 3});
+
+		ByteBuffer buffer = BinaryStorageCodec.Codec.encode(data);
+		if (!BinaryStorageCodec.Codec.canDecode(buffer))
+			throw new BadImplementationException("binary codec does not recognize its own output");
+
+		HashMap<String, Object> decoded = new HashMap<>();
+		BinaryStorageCodec.Codec.decode(buffer, decoded);
+
+		for (String key : data.keySet()) {
+			Object expected = data.get(key);
+			Object got = decoded.get(key);
+			boolean equals = expected instanceof byte[] ? Arrays.equals((byte[]) expected, (byte[]) got) : expected.equals(got);
+			if (!equals)
+				throw new BadImplementationException("didn't receive expected value for '" + key + "': " + expected + " - got: " + got);
+		}
+	}
+
+	@Test
+	public void test_CorruptBinaryStorageFailsToLoad()
+		throws IOException {
+		HashMap<String, Object> data = new HashMap<>();
+		data.put("int", 42);
+		data.put("string", "zevel");
+		data.put("blob", new byte[]{1, 2, 3});
+		data.put("json", new Gson().fromJson("{\"pah\":[1,2]}", JsonElement.class));
+
+		ByteBuffer encoded = BinaryStorageCodec.Codec.encode(data);
+		byte[] bytes = new byte[encoded.remaining()];
+		encoded.get(bytes);
+
+		File file = new File("build/test/corrupt-storage");
+		file.getParentFile().mkdirs();
+		for (int length = 0; length < bytes.length; length++) {
+			byte[] truncated = Arrays.copyOf(bytes, length);
+			if (!failsToDecode(truncated))
+				throw new BadImplementationException("a storage truncated to " + length + " of " + bytes.length + " bytes was decoded");
+
+			Files.write(file.toPath(), truncated);
+			try {
+				LazyStorageIndex.open(file, BinaryStorageCodec.Codec);
+				throw new BadImplementationException("a storage truncated to " + length + " of " + bytes.length + " bytes was indexed");
+			} catch (IOException expected) {
+				// reported as a loading error
+			}
+		}
+
+		// any corrupt byte, including the lengths, either decodes to some value or fails as an IOException
+		for (int i = 0; i < bytes.length; i++) {
+			for (byte corrupt : new byte[]{(byte) 0x80, (byte) 0xff, 0x7f, 0}) {
+				byte[] corrupted = bytes.clone();
+				corrupted[i] = corrupt;
+				failsToDecode(corrupted);
+
+				Files.write(file.toPath(), corrupted);
+				try {
+					LazyStorageIndex.open(file, BinaryStorageCodec.Codec);
+				} catch (IOException expected) {
+					// reported as a loading error
+				}
+			}
+		}
+	}
+
+	private static boolean failsToDecode(byte[] bytes) {
+		try {
+			BinaryStorageCodec.Codec.decode(ByteBuffer.wrap(bytes), new HashMap<String, Object>());
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class Test_StorageConcurrency
+	extends Test_StorageBase {
+
+	private static final int[] ThreadCounts = {
+		1,
+		4,
+		16
+	};
+
+	private static final long Duration = 200;
+
+	@Test
+	public void test_ConcurrentReadsSeeTheStoredValue()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		final IntegerPreference pref = new IntegerPreference("pref-concurrent", 42);
+		final IntegerPreference written = new IntegerPreference("pref-concurrent-written", 0);
+		pref.set(21);
+		pref.getPreferences().flush().get();
+
+		for (int threadCount : ThreadCounts) {
+			long reads = readConcurrently(pref, written, threadCount);
+			logInfo("Concurrent reads - threads: " + threadCount + ", reads/sec: " + reads * 1000 / Duration);
+		}
+	}
+
+	/**
+	 * Reads the preference from the given number of threads, while another key of the same group is written.
+	 */
+	private long readConcurrently(final IntegerPreference pref, final IntegerPreference written, int threadCount)
+		throws InterruptedException {
+		final AtomicLong totalReads = new AtomicLong();
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		ArrayList<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < threadCount; i++) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						failure.compareAndSet(null, "interrupted");
+						return;
+					}
+
+					// every reader reads at least once, however late it is scheduled
+					long reads = 0;
+					do {
+						int value = pref.get();
+						if (value != 21)
+							failure.compareAndSet(null, "read a wrong value: " + value);
+
+						reads++;
+					} while (!done.get() && failure.get() == null);
+					totalReads.addAndGet(reads);
+				}
+			}, "reader-" + i);
+			readers.add(reader);
+			reader.start();
+		}
+
+		start.countDown();
+		long deadline = System.currentTimeMillis() + Duration;
+		for (int i = 1; System.currentTimeMillis() < deadline && failure.get() == null; i++) {
+			written.set(i);
+		}
+
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		if (failure.get() != null)
+			throw new BadImplementationException("a concurrent read failed with " + threadCount + " threads, " + failure.get());
+
+		return totalReads.get();
+	}
+}
@@ -0,0 +1,109 @@
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.Durability;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Test_StorageDurability
+	extends Test_StorageBase {
+
+	private static final long Duration = 1000;
+
+	private final JsonStorageCodec codec = new JsonStorageCodec(new Gson());
+
+	@Test
+	public void test_SyncCommitIsDurableWhenSetReturns()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		String group = "durability-sync-commit";
+		// a debounced save would never reach the disk within the test
+		getModule(PreferencesModule.class).defineGroup(group, new GroupConfig().setDurability(Durability.SyncCommit).setSaveDelay(60000, 60000));
+
+		IntegerPreference pref = new IntegerPreference("pref-durability-sync", 0).setStorageGroup(group);
+		StorageImpl storage = pref.getPreferences();
+		for (int i = 1; i <= 20; i++) {
+			pref.setInt(i);
+
+			Object stored = readStorageFile(storage.getStorageFile()).get("pref-durability-sync");
+			if (!(stored instanceof Number) || ((Number) stored).intValue() != i)
+				throw new BadImplementationException("set returned before the value reached the disk, expected: " + i + ", found: " + stored);
+		}
+	}
+
+	@Test
+	public void test_AtomicRenameNeverLeavesATruncatedFile()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		String group = "durability-atomic-rename";
+		getModule(PreferencesModule.class).defineGroup(group, new GroupConfig().setDurability(Durability.AtomicRename).setSaveDelay(1, 5));
+
+		final StringPreference pref = new StringPreference("pref-durability-atomic", "").setStorageGroup(group);
+		final StorageImpl storage = pref.getPreferences();
+		pref.set("initial");
+		storage.flush().get();
+
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// growing values, so a partially written file could not pass for a complete one
+				StringBuilder value = new StringBuilder();
+				while (!done.get()) {
+					value.append("0123456789");
+					pref.set(value.toString());
+				}
+			}
+		}, "atomic-rename-writer");
+		writer.start();
+
+		File storageFile = storage.getStorageFile();
+		AtomicReference<String> failure = new AtomicReference<>();
+		int reads = 0;
+		long deadline = System.currentTimeMillis() + Duration;
+		try {
+			while (System.currentTimeMillis() < deadline && failure.get() == null) {
+				reads++;
+				if (!storageFile.exists()) {
+					failure.set("the storage file went missing while it was replaced");
+					break;
+				}
+
+				try {
+					if (!(readStorageFile(storageFile).get("pref-durability-atomic") instanceof String))
+						failure.set("the storage file was read without its value");
+				} catch (IOException e) {
+					failure.set("the storage file was read truncated: " + e.getMessage());
+				}
+			}
+		} finally {
+			done.set(true);
+			writer.join();
+		}
+
+		if (failure.get() != null)
+			throw new BadImplementationException(failure.get() + ", after " + reads + " reads");
+
+		storage.flush().get();
+		if (!pref.get().equals(readStorageFile(storageFile).get("pref-durability-atomic")))
+			throw new BadImplementationException("the last value was not saved");
+	}
+
+	private HashMap<String, Object> readStorageFile(File storageFile)
+		throws IOException {
+		HashMap<String, Object> map = new HashMap<>();
+		codec.decode(StorageFiles.readFully(storageFile), map);
+		return map;
+	}
+}
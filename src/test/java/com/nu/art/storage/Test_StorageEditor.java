@@ -0,0 +1,100 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.Editor;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Test_StorageEditor
+	extends Test_StorageBase {
+
+	private static final String Group = "edited-group";
+	private static final int Keys = 50;
+	private static final int Commits = 20000;
+
+	@Test
+	public void test_CommitIsSavedOnce()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setSaveDelay(60000, 60000));
+		StorageImpl storage = (StorageImpl) module.getStorage(Group);
+
+		Editor editor = storage.edit();
+		for (int i = 0; i < Keys; i++) {
+			editor.putInt("pref-edited-" + i, i);
+		}
+		editor.remove("pref-edited-missing").commit();
+		storage.flush().get();
+
+		SaveMetrics metrics = storage.getSaveMetrics();
+		if (metrics.getFlushCount() != 1 || metrics.getLastCoalesced() != Keys)
+			throw new BadImplementationException("expected a single save of all the changes, but got: " + metrics);
+
+		// committing the same values again changes nothing, so there is nothing to save
+		editor = storage.edit();
+		for (int i = 0; i < Keys; i++) {
+			editor.putInt("pref-edited-" + i, i);
+		}
+		editor.commit();
+		storage.flush().get();
+		if (metrics.getFlushCount() != 1)
+			throw new BadImplementationException("a commit of unchanged values was saved: " + metrics);
+
+		storage.clearMemCache();
+		for (int i = 0; i < Keys; i++) {
+			int value = new IntegerPreference("pref-edited-" + i, -1).setStorageGroup(Group).get();
+			if (value != i)
+				throw new BadImplementationException("wrong value for pref-edited-" + i + " after reload: " + value);
+		}
+	}
+
+	@Test
+	public void test_CommitIsPublishedAtomically()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig());
+		final StorageImpl storage = (StorageImpl) module.getStorage(Group);
+
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<>();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// whatever order the commit applies its changes in, one of the two reads would see it half applied
+				while (!done.get() && failure.get() == null) {
+					int first = storage.get("pref-edited-first", 0);
+					int second = storage.get("pref-edited-second", 0);
+					if (second < first)
+						failure.set("read first: " + first + " and then second: " + second);
+
+					second = storage.get("pref-edited-second", 0);
+					first = storage.get("pref-edited-first", 0);
+					if (first < second)
+						failure.set("read second: " + second + " and then first: " + first);
+				}
+			}
+		}, "editor-reader");
+		reader.start();
+
+		try {
+			for (int i = 1; i <= Commits && failure.get() == null; i++) {
+				storage.edit().putInt("pref-edited-first", i).putInt("pref-edited-second", i).commit();
+			}
+		} finally {
+			done.set(true);
+			reader.join();
+		}
+
+		if (failure.get() != null)
+			throw new BadImplementationException("a commit was seen half applied, " + failure.get());
+	}
+}
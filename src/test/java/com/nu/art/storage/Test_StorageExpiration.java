@@ -1,7 +1,13 @@
 package com.nu.art.storage;
 
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.Durability;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
 import com.nu.art.storage.Test_Setup.PrefModel;
 
+import org.junit.Test;
+
 import static com.nu.art.storage.Test_Utils.setAndValidate;
 import static com.nu.art.storage.Test_Utils.sleepFor;
 import static com.nu.art.storage.Test_Utils.validate;
@@ -26,4 +32,46 @@ public class Test_StorageExpiration
 
 		validate(model.pref, model.defaultValue);
 	}
+
+	@Test
+	public void test_RewritesKeepASingleSweepPerKey() {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		int pending = module.getPendingExpirations();
+		IntegerPreference pref = new IntegerPreference("pref-expiring-counter", 0).setExpires(60000);
+		for (int i = 1; i <= 10000; i++) {
+			pref.set(i, false);
+		}
+
+		if (module.getPendingExpirations() > pending + 1)
+			throw new BadImplementationException("sweeps were queued per write: " + (module.getPendingExpirations() - pending));
+	}
+
+	@Test
+	public void test_NoOpExpirationLeavesGroupClean()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		StorageImpl storage = new IntegerPreference("pref-expiring-missing", 0).getPreferences();
+		storage.flush().get();
+		storage.expireAt("pref-expiring-missing", System.currentTimeMillis() + 1000);
+		storage.clearExpiration("pref-expiring-missing");
+		if (storage.isDirty())
+			throw new BadImplementationException("expiring a missing key marked the group dirty");
+	}
+
+	@Test
+	public void test_ExpiringSetIsSavedOnce() {
+		Test_Setup.cleanUp();
+
+		getModule(PreferencesModule.class).defineGroup("sync-expiring", new GroupConfig().setDurability(Durability.SyncCommit));
+		IntegerPreference pref = new IntegerPreference("pref-expiring-sync", 0).setStorageGroup("sync-expiring").setExpires(60000);
+		StorageImpl storage = pref.getPreferences();
+		long flushes = storage.getSaveMetrics().getFlushCount();
+		pref.set(1);
+		pref.setInt(2);
+		if (storage.getSaveMetrics().getFlushCount() - flushes != 2)
+			throw new BadImplementationException("expiring sets were not saved once each: " + storage.getSaveMetrics());
+	}
 }
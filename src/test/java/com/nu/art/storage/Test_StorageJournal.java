@@ -0,0 +1,117 @@
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+public class Test_StorageJournal
+	extends Test_StorageBase {
+
+	private static final String Group = "journaled-group";
+	private static final long MaxJournalSize = 1024;
+
+	private final JsonStorageCodec codec = new JsonStorageCodec(new Gson());
+
+	@Test
+	public void test_JournalIsReplayedOnTopOfTheSnapshot()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setJournaled(true).setCompactionThreshold(Long.MAX_VALUE, Float.MAX_VALUE));
+		StringPreference kept = new StringPreference("pref-journal-kept", "default").setStorageGroup(Group);
+		StringPreference changed = new StringPreference("pref-journal-changed", "default").setStorageGroup(Group);
+		StringPreference removed = new StringPreference("pref-journal-removed", "default").setStorageGroup(Group);
+
+		kept.set("kept");
+		changed.set("before");
+		removed.set("removed");
+		StorageImpl storage = kept.getPreferences();
+		storage.flush().get();
+
+		changed.set("after");
+		removed.delete();
+		storage.flush().get();
+
+		// whether the first save was appended or compacted, the later ones are only appended
+		HashMap<String, Object> snapshot = readSnapshot(storage);
+		if ("after".equals(snapshot.get("pref-journal-changed")) || !snapshot.containsKey("pref-journal-removed") && snapshot.containsKey("pref-journal-kept"))
+			throw new BadImplementationException("the later mutations should only be in the journal, but the snapshot is: " + snapshot);
+
+		File journalFile = getJournalFile(storage);
+		if (!journalFile.exists())
+			throw new BadImplementationException("the later mutations were not journaled");
+
+		// a crash in the middle of an append leaves a torn record at the end of the journal
+		FileOutputStream outputStream = new FileOutputStream(journalFile, true);
+		try {
+			outputStream.write(new byte[]{0, 0, 0, 100, 0, '{'});
+		} finally {
+			outputStream.close();
+		}
+
+		storage.clearMemCache();
+		if (!"kept".equals(kept.get()) || !"after".equals(changed.get()) || !"default".equals(removed.get()))
+			throw new BadImplementationException("the journal was not replayed on top of the snapshot: " + kept.get() + ", " + changed.get() + ", " + removed.get());
+	}
+
+	@Test
+	public void test_JournalIsCompactedIntoTheSnapshot()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setJournaled(true).setCompactionThreshold(MaxJournalSize, Float.MAX_VALUE));
+		IntegerPreference pref = new IntegerPreference("pref-journal-counter", 0).setStorageGroup(Group);
+		StorageImpl storage = pref.getPreferences();
+		File journalFile = getJournalFile(storage);
+
+		int appends = 0;
+		int compactions = 0;
+		for (int i = 1; i <= 200; i++) {
+			pref.set(i);
+			storage.flush().get();
+
+			if (journalFile.exists()) {
+				appends++;
+				if (journalFile.length() >= MaxJournalSize)
+					throw new BadImplementationException("the journal grew past its compaction threshold: " + journalFile.length());
+
+				continue;
+			}
+
+			compactions++;
+			Object stored = readSnapshot(storage).get("pref-journal-counter");
+			if (!(stored instanceof Number) || ((Number) stored).intValue() != i)
+				throw new BadImplementationException("the compacted snapshot does not hold the last value: " + i + ", found: " + stored);
+		}
+
+		// the first save writes the initial snapshot, the rest of the compactions are due to the threshold
+		if (appends == 0 || compactions < 2)
+			throw new BadImplementationException("expected the journal to be appended and compacted, appends: " + appends + ", compactions: " + compactions);
+
+		storage.clearMemCache();
+		if (pref.get() != 200)
+			throw new BadImplementationException("wrong value after reloading the compacted group: " + pref.get());
+	}
+
+	private File getJournalFile(StorageImpl storage) {
+		File storageFile = storage.getStorageFile();
+		return new File(storageFile.getParentFile(), storageFile.getName() + StorageJournal.JOURNAL_POSTFIX);
+	}
+
+	private HashMap<String, Object> readSnapshot(StorageImpl storage)
+		throws IOException {
+		HashMap<String, Object> map = new HashMap<>();
+		codec.decode(StorageFiles.readFully(storage.getStorageFile()), map);
+		return map;
+	}
+}
@@ -0,0 +1,91 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+public class Test_StorageLazyLoading
+	extends Test_StorageBase {
+
+	private static final String Group = "lazy-group";
+	private static final int Keys = 100;
+
+	@Test
+	public void test_ValuesAreDecodedOnFirstRead()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		StorageImpl storage = writeValues(module);
+		storage.clearMemCache();
+
+		// opening the group only indexes it, the read value is the only one held in memory
+		String first = createPref(0).get();
+		long valueWeight = SizeEstimator.estimate("pref-lazy-0", first);
+		long usage = module.getEstimatedMemoryUsage();
+		if (!value(0).equals(first) || usage != valueWeight)
+			throw new BadImplementationException("expected only the read value to be decoded, weight: " + valueWeight + ", usage: " + usage);
+
+		for (int i = 1; i < Keys; i++) {
+			if (!value(i).equals(createPref(i).get()))
+				throw new BadImplementationException("wrong value for pref-lazy-" + i);
+		}
+
+		if (module.getEstimatedMemoryUsage() < valueWeight * Keys)
+			throw new BadImplementationException("the read values were not accounted for: " + module.getEstimatedMemoryUsage());
+
+		if (!"default".equals(new StringPreference("pref-lazy-missing", "default").setStorageGroup(Group).get()))
+			throw new BadImplementationException("a key that is not in the index should resolve to its default");
+	}
+
+	@Test
+	public void test_UnreadValuesSurviveASave()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		StorageImpl storage = writeValues(module);
+		storage.clearMemCache();
+
+		// the rest of the values are still encoded when the group is saved again
+		createPref(0).get();
+		createPref(1).set("changed");
+		createPref(2).delete();
+		storage.flush().get();
+		storage.clearMemCache();
+
+		if (!"changed".equals(createPref(1).get()) || !"default".equals(createPref(2).get()))
+			throw new BadImplementationException("the changes to the lazily loaded group were lost");
+
+		for (int i = 0; i < Keys; i++) {
+			if (i != 1 && i != 2 && !value(i).equals(createPref(i).get()))
+				throw new BadImplementationException("the value of pref-lazy-" + i + " did not survive the save");
+		}
+	}
+
+	private StorageImpl writeValues(PreferencesModule module)
+		throws Exception {
+		module.defineGroup(Group, new GroupConfig().setCodec(BinaryStorageCodec.Codec).setLazyLoading(true));
+		for (int i = 0; i < Keys; i++) {
+			createPref(i).set(value(i));
+		}
+
+		StorageImpl storage = createPref(0).getPreferences();
+		storage.flush().get();
+		return storage;
+	}
+
+	private StringPreference createPref(int i) {
+		return new StringPreference("pref-lazy-" + i, "default").setStorageGroup(Group);
+	}
+
+	private String value(int i) {
+		StringBuilder value = new StringBuilder("value-" + i + "-");
+		while (value.length() < 256) {
+			value.append(i);
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,281 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageChangeListener;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.nu.art.storage.Test_Utils.sleepFor;
+
+public class Test_StorageMapped
+	extends Test_StorageBase {
+
+	private static final String Group = "mapped-group";
+	private static final int Keys = 2000;
+
+	@Test
+	public void test_ValuesSurviveRebuildAndReopen()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setMemoryMapped(true));
+
+		// enough keys to grow the bucket table a couple of times, and values that outgrow their records
+		for (int i = 0; i < Keys; i++) {
+			new StringPreference("pref-mapped-" + i, "default").setStorageGroup(Group).set("value-" + i);
+		}
+		for (int i = 0; i < Keys; i += 3) {
+			new StringPreference("pref-mapped-" + i, "default").setStorageGroup(Group).set("a much longer value than the original one-" + i);
+		}
+
+		StorageImpl storage = (StorageImpl) module.getStorage(Group);
+		storage.flush().get();
+
+		File storageFile = storage.getStorageFile();
+		if (new File(storageFile.getParentFile(), storageFile.getName() + ".tmp").exists())
+			throw new BadImplementationException("a rebuild left its temp file behind");
+
+		unload(module, storage);
+		assertValues();
+	}
+
+	@Test
+	public void test_InterruptedRebuildIsRecovered()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setMemoryMapped(true));
+		for (int i = 0; i < Keys; i++) {
+			new StringPreference("pref-mapped-" + i, "default").setStorageGroup(Group).set(i % 3 == 0 ? "a much longer value than the original one-" + i : "value-" + i);
+		}
+
+		StorageImpl storage = (StorageImpl) module.getStorage(Group);
+		storage.flush().get();
+		unload(module, storage);
+
+		// a crash between deleting the file and renaming the rebuilt one into place
+		File storageFile = storage.getStorageFile();
+		File tempFile = new File(storageFile.getParentFile(), storageFile.getName() + ".tmp");
+		if (!storageFile.renameTo(tempFile))
+			throw new BadImplementationException("could not simulate an interrupted rebuild");
+
+		assertValues();
+		if (!storageFile.exists() || tempFile.exists())
+			throw new BadImplementationException("the temp file of the interrupted rebuild was not moved into place");
+
+		// a crash before the rebuilt file replaced the previous one
+		storage = (StorageImpl) module.getStorage(Group);
+		unload(module, storage);
+		Files.write(tempFile.toPath(), "partially rebuilt".getBytes());
+
+		assertValues();
+		if (tempFile.exists())
+			throw new BadImplementationException("the temp file of an unfinished rebuild was not deleted");
+	}
+
+	@Test
+	public void test_ClearNotifiesAndSaves()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.setChangeDispatchWindow(10);
+		module.defineGroup(Group, new GroupConfig().setMemoryMapped(true));
+		StringPreference pref = new StringPreference("pref-mapped-cleared", "default").setStorageGroup(Group);
+		StringPreference expiring = new StringPreference("pref-mapped-expiring", "default").setStorageGroup(Group).setExpires(60000);
+		pref.set("value");
+		expiring.set("value");
+
+		StorageImpl storage = pref.getPreferences();
+		storage.flush().get();
+		long flushes = storage.getSaveMetrics().getFlushCount();
+
+		final LinkedBlockingQueue<Set<String>> notified = new LinkedBlockingQueue<>();
+		module.addChangeListener(Group, new StorageChangeListener() {
+			@Override
+			public void onStorageChanged(String group, Set<String> keys) {
+				notified.add(new HashSet<>(keys));
+			}
+		});
+
+		storage.clear();
+		storage.flush().get();
+
+		Set<String> keys = notified.poll(5000, TimeUnit.MILLISECONDS);
+		if (keys == null || !keys.equals(new HashSet<>(Arrays.asList("pref-mapped-cleared", "pref-mapped-expiring"))))
+			throw new BadImplementationException("clearing a mapped group should notify its keys, but got: " + keys);
+
+		if (storage.getSaveMetrics().getFlushCount() == flushes)
+			throw new BadImplementationException("clearing a mapped group was not saved");
+
+		unload(module, storage);
+		if (!"default".equals(pref.get()) || !"default".equals(expiring.get()))
+			throw new BadImplementationException("the cleared values were reopened");
+	}
+
+	@Test
+	public void test_UnchangedWritesAreSkipped()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.setChangeDispatchWindow(10);
+		module.defineGroup(Group, new GroupConfig().setMemoryMapped(true));
+		StringPreference pref = new StringPreference("pref-mapped-unchanged", "default").setStorageGroup(Group);
+		StringPreference missing = new StringPreference("pref-mapped-missing", "default").setStorageGroup(Group);
+		pref.set("value");
+
+		StorageImpl storage = pref.getPreferences();
+		storage.flush().get();
+		long mutations = storage.getSaveMetrics().getCoalescedMutations();
+
+		final LinkedBlockingQueue<Set<String>> notified = new LinkedBlockingQueue<>();
+		StorageChangeListener listener = new StorageChangeListener() {
+			@Override
+			public void onStorageChanged(String group, Set<String> keys) {
+				notified.add(new HashSet<>(keys));
+			}
+		};
+		module.addChangeListener(Group, listener);
+		try {
+			pref.set("value");
+			missing.delete();
+			storage.edit().putString("pref-mapped-unchanged", "value").remove("pref-mapped-missing").commit();
+			storage.flush().get();
+			if (storage.getSaveMetrics().getCoalescedMutations() != mutations)
+				throw new BadImplementationException("writes that changed nothing were saved: " + storage.getSaveMetrics());
+
+			// a real change after the no-op ones, so its notification proves they notified nothing
+			pref.set("changed");
+			Set<String> keys = notified.poll(5000, TimeUnit.MILLISECONDS);
+			if (keys == null || !keys.equals(new HashSet<>(Arrays.asList("pref-mapped-unchanged"))))
+				throw new BadImplementationException("expected only the real change to be notified, but got: " + keys);
+		} finally {
+			module.removeChangeListener(Group, listener);
+		}
+	}
+
+	@Test
+	public void test_ExpirationsAreSweptAfterReopen()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setMemoryMapped(true));
+		StringPreference expiring = new StringPreference("pref-mapped-expiring", "default").setStorageGroup(Group).setExpires(1000);
+		expiring.set("value");
+
+		StorageImpl storage = expiring.getPreferences();
+		storage.flush().get();
+		unload(module, storage);
+
+		// the sweeps of the unloaded group were cancelled, the reopened one schedules them from its persisted expirations
+		StorageImpl reopened = expiring.getPreferences();
+		if (reopened.getExpiresAt("pref-mapped-expiring") == 0)
+			throw new BadImplementationException("the persisted expiration was not indexed when the group was reopened");
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (reopened.getExpiresAt("pref-mapped-expiring") != 0) {
+			if (System.currentTimeMillis() > deadline)
+				throw new BadImplementationException("the expired value was not swept after the group was reopened");
+
+			sleepFor(10);
+		}
+
+		if (reopened.get("pref-mapped-expiring", null) != null)
+			throw new BadImplementationException("the swept value is still stored");
+	}
+
+	@Test
+	public void test_ReadsDuringGrowthAndRebuildSeeTheStoredValues()
+		throws Exception {
+		final File folder = Files.createTempDirectory("mapped-reads").toFile();
+		final MappedStorageFile mapped = new MappedStorageFile(new File(folder, "mapped"));
+		mapped.open();
+		mapped.put("stable", "stable value");
+
+		final AtomicReference<String> failure = new AtomicReference<>();
+		final AtomicBoolean done = new AtomicBoolean();
+		ArrayList<Thread> readers = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						do {
+							Object value = mapped.get("stable");
+							if (!"stable value".equals(value))
+								failure.compareAndSet(null, "read a wrong value: " + value);
+
+							value = mapped.get("pref-mapped-" + Keys / 2);
+							if (value != null && !String.valueOf(value).startsWith("value-"))
+								failure.compareAndSet(null, "read a wrong value: " + value);
+						} while (!done.get() && failure.get() == null);
+					} catch (Exception e) {
+						failure.compareAndSet(null, "failed with: " + e);
+					}
+				}
+			}, "reader-" + i);
+			readers.add(reader);
+			reader.start();
+		}
+
+		try {
+			// grows the file and the bucket table, and rewrites values until the garbage triggers rebuilds
+			for (int round = 0; round < 4 && failure.get() == null; round++) {
+				for (int i = 0; i < Keys; i++) {
+					mapped.put("pref-mapped-" + i, "value-" + round + "-" + i);
+				}
+			}
+		} finally {
+			done.set(true);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			mapped.close();
+		}
+
+		if (failure.get() != null)
+			throw new BadImplementationException("a read during a write to the mapped file failed, " + failure.get());
+	}
+
+	private void unload(PreferencesModule module, StorageImpl storage)
+		throws Exception {
+		module.setIdleGroupTimeout(1);
+		try {
+			sleepFor(10);
+			storage.scheduleUnload();
+			storage.flush().get();
+		} finally {
+			module.setIdleGroupTimeout(0);
+		}
+
+		if (!storage.isDisposed())
+			throw new BadImplementationException("the mapped group was not unloaded");
+	}
+
+	private void assertValues() {
+		for (int i = 0; i < Keys; i++) {
+			String expected = i % 3 == 0 ? "a much longer value than the original one-" + i : "value-" + i;
+			String value = new StringPreference("pref-mapped-" + i, "default").setStorageGroup(Group).get();
+			if (!expected.equals(value))
+				throw new BadImplementationException("wrong value for pref-mapped-" + i + ": " + value);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+
+import org.junit.Test;
+
+public class Test_StorageMemoryBudget
+	extends Test_StorageBase {
+
+	@Test
+	public void test_LeastRecentlyUsedGroupIsEvicted()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup("budget-a", new GroupConfig());
+		module.defineGroup("budget-b", new GroupConfig());
+		StringPreference a = new StringPreference("pref-budget-a", "default").setStorageGroup("budget-a");
+		StringPreference b = new StringPreference("pref-budget-b", "default").setStorageGroup("budget-b");
+		a.set("value-a");
+		b.set("value-b");
+		a.getPreferences().flush().get();
+		b.getPreferences().flush().get();
+
+		CacheMetrics metrics = module.getCacheMetrics();
+		long evictions = metrics.getEvictionCount();
+		long misses = metrics.getMissCount();
+		module.setMemoryBudget(1);
+		try {
+			// saving a checks the budget, and evicts b as the least recently used clean group
+			a.set("value-a2");
+			a.getPreferences().flush().get();
+			b.getPreferences().flush().get();
+			if (metrics.getEvictionCount() == evictions)
+				throw new BadImplementationException("no group was evicted: " + metrics);
+
+			if (!"value-b".equals(b.get()))
+				throw new BadImplementationException("the evicted group lost its value: " + b.get());
+
+			if (metrics.getMissCount() == misses)
+				throw new BadImplementationException("reading the evicted group was not a miss: " + metrics);
+		} finally {
+			module.setMemoryBudget(0);
+		}
+	}
+
+	@Test
+	public void test_DirtyGroupIsNotEvicted()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup("budget-a", new GroupConfig());
+		module.defineGroup("budget-b", new GroupConfig().setSaveDelay(60000, 60000));
+		StringPreference a = new StringPreference("pref-budget-a", "default").setStorageGroup("budget-a");
+		StringPreference b = new StringPreference("pref-budget-b", "default").setStorageGroup("budget-b");
+		b.set("value-b");
+
+		module.setMemoryBudget(1);
+		try {
+			a.set("value-a");
+			a.getPreferences().flush().get();
+			if (!b.getPreferences().isDirty() || !"value-b".equals(b.get()))
+				throw new BadImplementationException("a group with unsaved changes was evicted");
+		} finally {
+			module.setMemoryBudget(0);
+		}
+	}
+
+	@Test
+	public void test_JournalAppendsUpdateTheUsage()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup("budget-journaled", new GroupConfig().setJournaled(true).setCompactionThreshold(Long.MAX_VALUE, Float.MAX_VALUE));
+		StringPreference pref = new StringPreference("pref-budget-journaled", "default").setStorageGroup("budget-journaled");
+		pref.set("value");
+		pref.getPreferences().flush().get();
+
+		// the later saves are only appended to the journal, without a snapshot of the data
+		long usage = module.getEstimatedMemoryUsage();
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 10000) {
+			large.append("large value ");
+		}
+		pref.set(large.toString());
+		pref.getPreferences().flush().get();
+		if (module.getEstimatedMemoryUsage() < usage + 2L * large.length() - 2L * "value".length())
+			throw new BadImplementationException("the appended value was not accounted for, usage: " + usage + " -> " + module.getEstimatedMemoryUsage());
+
+		pref.delete();
+		pref.getPreferences().flush().get();
+		if (module.getEstimatedMemoryUsage() >= usage)
+			throw new BadImplementationException("the removed value is still accounted for, usage: " + usage + " -> " + module.getEstimatedMemoryUsage());
+	}
+}
@@ -0,0 +1,57 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static com.nu.art.storage.Test_Utils.sleepFor;
+
+/**
+ * Two groups backed by the same file stand in for two processes sharing it, they only meet through the files and the file lock.
+ */
+public class Test_StorageMultiProcess
+	extends Test_StorageBase {
+
+	private static final long Timeout = 5000;
+
+	@Test
+	public void test_ConcurrentWritersKeepEachOthersKeys()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		File storageFolder = ((StorageImpl) module.getStorage(PreferencesModule.DefaultStorageGroup)).getStorageFile().getParentFile();
+		File storageFile = new File(storageFolder, "multi-process");
+		module.defineGroup("process-a", storageFile, new GroupConfig().setMultiProcess(true).setSaveDelay(10, 100));
+		module.defineGroup("process-b", storageFile, new GroupConfig().setMultiProcess(true).setSaveDelay(10, 100));
+
+		StringPreference fromA = new StringPreference("pref-from-a", null).setStorageGroup("process-a");
+		StringPreference fromB = new StringPreference("pref-from-b", null).setStorageGroup("process-b");
+		fromA.set("a");
+		fromB.set("b");
+		fromA.getPreferences().flush().get();
+		fromB.getPreferences().flush().get();
+
+		// b merged the record of a while committing its own, a merges the record of b once it detects the change
+		StringPreference seenByB = new StringPreference("pref-from-a", null).setStorageGroup("process-b");
+		if (!"a".equals(seenByB.get()))
+			throw new BadImplementationException("process b did not merge the key of process a: " + seenByB.get());
+
+		StringPreference seenByA = new StringPreference("pref-from-b", null).setStorageGroup("process-a");
+		long deadline = System.currentTimeMillis() + Timeout;
+		while (!"b".equals(seenByA.get())) {
+			if (System.currentTimeMillis() > deadline)
+				throw new BadImplementationException("process a did not merge the key of process b: " + seenByA.get());
+
+			sleepFor(10);
+		}
+
+		module.defineGroup("process-c", storageFile, new GroupConfig().setMultiProcess(true));
+		if (!"a".equals(new StringPreference("pref-from-a", null).setStorageGroup("process-c").get()) || !"b".equals(new StringPreference("pref-from-b", null).setStorageGroup("process-c").get()))
+			throw new BadImplementationException("a writer overwrote the key of the other");
+	}
+}
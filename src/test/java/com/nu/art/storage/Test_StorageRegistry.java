@@ -0,0 +1,143 @@
+package com.nu.art.storage;
+
+import com.google.gson.Gson;
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.core.tools.FileTools;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Test_StorageRegistry
+	extends Test_StorageBase {
+
+	private static final int Threads = 16;
+	private static final int Keys = 1000;
+
+	@Test
+	public void test_ConcurrentFirstAccessLoadsOnce()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		final PreferencesModule module = getModule(PreferencesModule.class);
+		// a group name that was never opened, so the threads race on creating it as well as on loading it
+		final String group = "registry-" + System.nanoTime();
+		writeGroupFile(group);
+
+		CountingCodec codec = new CountingCodec();
+		final Set<StorageImpl> opened = Collections.newSetFromMap(new ConcurrentHashMap<StorageImpl, Boolean>());
+		module.setDefaultGroupConfig(new GroupConfig().setCodec(codec));
+		try {
+			runConcurrently(new Runnable() {
+				@Override
+				public void run() {
+					StorageImpl storage = (StorageImpl) module.getStorage(group);
+					opened.add(storage);
+					assertValue(storage.get("pref-registry-0", "default"));
+				}
+			});
+		} finally {
+			module.setDefaultGroupConfig(new GroupConfig());
+		}
+
+		if (opened.size() != 1)
+			throw new BadImplementationException("expected a single storage for the group, but got: " + opened.size());
+
+		if (codec.decoded.get() != 1)
+			throw new BadImplementationException("expected the group to be loaded once, but it was loaded: " + codec.decoded.get() + " times");
+
+		// a group that is reloaded after its memory was cleared is loaded once as well
+		StorageImpl storage = opened.iterator().next();
+		storage.clearMemCache();
+		final StringPreference pref = new StringPreference("pref-registry-0", "default").setStorageGroup(group);
+		runConcurrently(new Runnable() {
+			@Override
+			public void run() {
+				assertValue(pref.get());
+			}
+		});
+
+		if (codec.decoded.get() != 2)
+			throw new BadImplementationException("expected the cleared group to be reloaded once, but it was loaded: " + (codec.decoded.get() - 1) + " times");
+	}
+
+	private void writeGroupFile(String group)
+		throws IOException {
+		HashMap<String, Object> data = new HashMap<>();
+		for (int i = 0; i < Keys; i++) {
+			data.put("pref-registry-" + i, "value-" + i);
+		}
+
+		File storageFile = new File(Test_Setup.storageFolder, group);
+		FileTools.mkDir(storageFile.getParentFile());
+		StorageFiles.write(new JsonStorageCodec(new Gson()).encode(data), storageFile);
+	}
+
+	private void runConcurrently(final Runnable access)
+		throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(Threads);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		for (int i = 0; i < Threads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						access.run();
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "registry-" + i).start();
+		}
+
+		start.countDown();
+		done.await();
+		if (failure.get() != null)
+			throw new BadImplementationException("a concurrent access failed", failure.get());
+	}
+
+	private static void assertValue(String value) {
+		if (!"value-0".equals(value))
+			throw new BadImplementationException("a concurrent access did not wait for the load, got: " + value);
+	}
+
+	private static class CountingCodec
+		implements StorageCodec {
+
+		private final JsonStorageCodec codec = new JsonStorageCodec(new Gson());
+		private final AtomicInteger decoded = new AtomicInteger();
+
+		@Override
+		public boolean canDecode(ByteBuffer buffer) {
+			return codec.canDecode(buffer);
+		}
+
+		@Override
+		public ByteBuffer encode(Map<String, Object> data) {
+			return codec.encode(data);
+		}
+
+		@Override
+		public void decode(ByteBuffer buffer, Map<String, Object> into)
+			throws IOException {
+			decoded.incrementAndGet();
+			codec.decode(buffer, into);
+		}
+	}
+}
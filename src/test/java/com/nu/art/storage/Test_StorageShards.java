@@ -0,0 +1,99 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import java.io.File;
+
+public class Test_StorageShards
+	extends Test_StorageBase {
+
+	private static final String Group = "sharded-group";
+	private static final int Shards = 4;
+	private static final int Keys = 100;
+
+	@Test
+	public void test_OnlyDirtyShardsAreRewritten()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setShards(Shards).setSaveDelay(10, 100));
+
+		IntegerPreference[] prefs = new IntegerPreference[Keys];
+		for (int i = 0; i < Keys; i++) {
+			prefs[i] = new IntegerPreference("pref-shard-" + i, -1).setStorageGroup(Group);
+			prefs[i].setInt(i);
+		}
+
+		StorageImpl storage = prefs[0].getPreferences();
+		storage.flush().get();
+
+		File storageFile = storage.getStorageFile();
+		if (storageFile.exists())
+			throw new BadImplementationException("a sharded group should not write a single storage file");
+
+		File[] shardFiles = new File[Shards];
+		for (int i = 0; i < Shards; i++) {
+			shardFiles[i] = new File(storageFile.getParentFile(), storageFile.getName() + StorageShards.ShardInfix + i);
+			if (!shardFiles[i].exists())
+				throw new BadImplementationException("missing shard file: " + shardFiles[i].getName());
+
+			shardFiles[i].setLastModified(0);
+		}
+
+		prefs[7].setInt(700);
+		storage.flush().get();
+
+		int rewritten = 0;
+		for (File shardFile : shardFiles) {
+			if (shardFile.lastModified() != 0)
+				rewritten++;
+		}
+
+		if (rewritten != 1)
+			throw new BadImplementationException("expected a single shard to be rewritten, but was: " + rewritten);
+
+		module.clearMemCache();
+		for (int i = 0; i < Keys; i++) {
+			int expected = i == 7 ? 700 : i;
+			if (prefs[i].getInt() != expected)
+				throw new BadImplementationException("wrong value for: pref-shard-" + i + ", " + prefs[i].getInt());
+		}
+	}
+
+	@Test
+	public void test_ChangingTheShardCountKeepsKeys()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setShards(Shards));
+		for (int i = 0; i < Keys; i++) {
+			new IntegerPreference("pref-reshard-" + i, -1).setStorageGroup(Group).setInt(i);
+		}
+		module.getStorage(Group).flush().get();
+
+		int[] counts = {
+			2,
+			7
+		};
+		for (int count : counts) {
+			module.defineGroup(Group, new GroupConfig().setShards(count));
+			for (int i = 0; i < Keys; i++) {
+				int value = new IntegerPreference("pref-reshard-" + i, -1).setStorageGroup(Group).getInt();
+				if (value != i)
+					throw new BadImplementationException("lost pref-reshard-" + i + " going to " + count + " shards, got: " + value);
+			}
+
+			File storageFile = ((StorageImpl) module.getStorage(Group)).getStorageFile();
+			for (int i = count; i < Shards + count; i++) {
+				if (new File(storageFile.getParentFile(), storageFile.getName() + StorageShards.ShardInfix + i).exists())
+					throw new BadImplementationException("a shard beyond the count of " + count + " was left on disk: " + i);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class Test_StorageSpill
+	extends Test_StorageBase {
+
+	private static final String Group = "spilling-group";
+
+	@Test
+	public void test_LargeValuesAreSpilled()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setSpillThreshold(1024));
+
+		StringPreference pref = new StringPreference("pref-large", null).setStorageGroup(Group);
+		String large = createValue('a', 64 * 1024);
+		pref.set(large);
+		pref.getPreferences().flush().get();
+
+		File storageFile = pref.getPreferences().getStorageFile();
+		File blobsFolder = new File(storageFile.getParentFile(), storageFile.getName() + StorageBlobs.FOLDER_POSTFIX);
+		if (storageFile.length() >= 1024)
+			throw new BadImplementationException("the large value should not be in the group file");
+
+		assertBlobCount(blobsFolder, 1);
+
+		module.clearMemCache();
+		if (!large.equals(pref.get()))
+			throw new BadImplementationException("wrong value read from the spilled file");
+
+		if (pref.getPreferences().getBuffer("pref-large").remaining() != large.length())
+			throw new BadImplementationException("wrong size of the spilled buffer");
+
+		pref.set(createValue('b', 64 * 1024));
+		pref.getPreferences().flush().get();
+		assertBlobCount(blobsFolder, 1);
+
+		pref.delete();
+		pref.getPreferences().flush().get();
+		assertBlobCount(blobsFolder, 0);
+	}
+
+	@Test
+	public void test_SpilledValueIsResolvedOnce()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setSpillThreshold(1024));
+
+		StringPreference pref = new StringPreference("pref-large", null).setStorageGroup(Group);
+		pref.set(createValue('c', 64 * 1024));
+		pref.getPreferences().flush().get();
+
+		module.clearMemCache();
+		String first = pref.get();
+		if (first != pref.get())
+			throw new BadImplementationException("a spilled value should be read from its side file once");
+
+		module.clearMemCache();
+		if (first == pref.get())
+			throw new BadImplementationException("clearing the group from memory should drop the resolved values");
+	}
+
+	private static String createValue(char c, int length) {
+		char[] chars = new char[length];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private static void assertBlobCount(File blobsFolder, int expected) {
+		String[] blobs = blobsFolder.list();
+		int count = blobs == null ? 0 : blobs.length;
+		if (count != expected)
+			throw new BadImplementationException("expected " + expected + " blobs, but found: " + count);
+	}
+}
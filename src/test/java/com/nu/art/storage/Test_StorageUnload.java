@@ -0,0 +1,111 @@
+package com.nu.art.storage;
+
+import com.nu.art.core.exceptions.runtime.BadImplementationException;
+import com.nu.art.storage.PreferencesModule.GroupConfig;
+import com.nu.art.storage.PreferencesModule.StorageImpl;
+
+import org.junit.Test;
+
+import static com.nu.art.storage.Test_Utils.sleepFor;
+
+public class Test_StorageUnload
+	extends Test_StorageBase {
+
+	private static final String Group = "idle-group";
+
+	@Test
+	public void test_IdleGroupIsUnloadedAndReopened()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig());
+		StringPreference pref = new StringPreference("pref-idle", "default").setStorageGroup(Group);
+		StringPreference expiring = new StringPreference("pref-idle-expiring", "default").setStorageGroup(Group).setExpires(60000);
+		pref.set("value");
+		expiring.set("value");
+
+		StorageImpl storage = pref.getPreferences();
+		int pendingExpirations = module.getPendingExpirations();
+		module.setIdleGroupTimeout(1);
+		try {
+			sleepFor(10);
+			storage.scheduleUnload();
+			storage.flush().get();
+		} finally {
+			module.setIdleGroupTimeout(0);
+		}
+
+		if (!storage.isDisposed())
+			throw new BadImplementationException("the idle group was not unloaded");
+
+		if (module.getPendingExpirations() != pendingExpirations - 1)
+			throw new BadImplementationException("the expirations of the unloaded group are still queued");
+
+		try {
+			storage.put("pref-idle", "lost");
+			throw new BadImplementationException("writing to an unloaded group should be rejected");
+		} catch (BadImplementationException e) {
+			if (!e.getMessage().contains("disposed"))
+				throw e;
+		}
+
+		if (!"value".equals(pref.get()) || !"value".equals(expiring.get()))
+			throw new BadImplementationException("the unloaded group was not reopened: " + pref.get());
+
+		if (pref.getPreferences() == storage)
+			throw new BadImplementationException("the key should resolve the reopened group");
+	}
+
+	@Test
+	public void test_AccessedGroupWithChangesIsKept() {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig().setSaveDelay(60000, 60000));
+		StringPreference pref = new StringPreference("pref-idle", "default").setStorageGroup(Group);
+		StorageImpl storage = pref.getPreferences();
+		module.setIdleGroupTimeout(60000);
+		try {
+			pref.set("value");
+			storage.scheduleUnload();
+			sleepFor(100);
+		} finally {
+			module.setIdleGroupTimeout(0);
+		}
+
+		if (storage.isDisposed())
+			throw new BadImplementationException("a group that was just accessed should not be unloaded");
+	}
+
+	@Test
+	public void test_TimeoutSetAfterInitUnloadsAndZeroDisables()
+		throws Exception {
+		Test_Setup.cleanUp();
+
+		PreferencesModule module = getModule(PreferencesModule.class);
+		module.defineGroup(Group, new GroupConfig());
+		StringPreference pref = new StringPreference("pref-idle", "default").setStorageGroup(Group);
+		pref.set("value");
+		StorageImpl storage = pref.getPreferences();
+		storage.flush().get();
+
+		// the periodic check is started by the setter, nothing unloads the group explicitly
+		module.setIdleGroupTimeout(1);
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!storage.isDisposed()) {
+				if (System.currentTimeMillis() > deadline)
+					throw new BadImplementationException("the idle group was not unloaded by the periodic check");
+
+				sleepFor(10);
+			}
+		} finally {
+			module.setIdleGroupTimeout(0);
+		}
+
+		StorageImpl reopened = pref.getPreferences();
+		if (reopened.isIdle(System.nanoTime() + 3600000000000L))
+			throw new BadImplementationException("no group should be idle once the timeout is disabled");
+	}
+}